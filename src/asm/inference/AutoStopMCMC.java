@@ -1,13 +1,37 @@
 package asm.inference;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import beast.base.core.Description;
 import beast.base.core.Input;
@@ -35,6 +59,16 @@ public class AutoStopMCMC extends MCMC {
 	public Input<Integer> nrOfChainsInput = new Input<>("chains", "number of chains to run in parallel (default 2)", 2);
 	public Input<List<MCMCConvergenceCriterion>> stoppingCriterionInput = new Input<>("stoppingCriterion", "one or more stopping criterion for tracking progress of the chains", new ArrayList<>());
 	public Input<Boolean> combineLogsInput = new Input<>("combineLogs", "create combined log with appropriate burn-ins at the end of the run", true);
+	public Input<Boolean> inProcessInput = new Input<>("inProcess", "if true, chains hand over logged samples and trees directly "
+			+ "instead of these being read back from the log files (which are still written). "
+			+ "Ignored when resuming a run", false);
+	public Input<Integer> pollIntervalInput = new Input<>("pollInterval", "maximum time in milliseconds to wait before checking the logs for new samples. "
+			+ "Logs are checked as soon as the file system reports they changed, but this can be slow or unsupported for network drives", 250);
+	public Input<Double> checkLoadInput = new Input<>("checkLoad", "maximum fraction of time spent on checking stopping criteria. "
+			+ "When checks take longer than logging samples, checks are spaced out accordingly and the samples "
+			+ "logged in the mean time are processed in one batch", 0.5);
+	public Input<Integer> checkThreadsInput = new Input<>("checkThreads", "number of threads used to evaluate stopping criteria concurrently. "
+			+ "Criteria sharing a tree distance cache are evaluated on the same thread", 1);
 	
     final public Input<List<Logger>> asmloggersInput =
             new Input<>("asmlogger", "loggers for reporting progress of stopping criteria", new ArrayList<>());
@@ -75,8 +109,21 @@ public class AutoStopMCMC extends MCMC {
 	protected int m_iTreeLog = 0;
 	protected int m_iLog = 0;
 
-	
-	private boolean slept = false;
+
+	/** whether samples are taken from sampleQueues instead of being read from the log files **/
+	protected boolean inProcess;
+	/** queues with samples logged by the chains, one for each chain **/
+	protected BlockingQueue<ChainSample> [] sampleQueues;
+
+	/** stopping criteria grouped by shared state, each group evaluated as one task **/
+	protected List<List<MCMCConvergenceCriterion>> criterionGroups;
+	/** executor for evaluating criterion groups concurrently, or null to evaluate them on the log watcher thread **/
+	protected ExecutorService checkExecutor;
+
+	/** marks start of checkpoint file with state of stopping criteria and tree distance cache ("ASM1") **/
+	final static int CHECKPOINT_MAGIC = 0x41534d31;
+	/** minimum time in milliseconds between writing checkpoints **/
+	final static long CHECKPOINT_INTERVAL = 60000;
 
 	@Override
 	public void initAndValidate() {
@@ -104,6 +151,7 @@ public class AutoStopMCMC extends MCMC {
 			Log.warning("=========================");
 		}
 		stoppingCriterionInput.get().clear();
+		inProcess = inProcessInput.get();
 		initChains();
 	} // initAndValidate
 	
@@ -118,6 +166,10 @@ public class AutoStopMCMC extends MCMC {
 		sXML = sXML.replaceAll("targetESS=[^ /]*", "");
 		sXML = sXML.replaceAll("burnInStrat=[^ /]*", "");
 		sXML = sXML.replaceAll("burnInPercent=[^ /]*", "");
+		sXML = sXML.replaceAll("inProcess=[^ /]*", "");
+		sXML = sXML.replaceAll("pollInterval=[^ /]*", "");
+		sXML = sXML.replaceAll("checkLoad=[^ /]*", "");
+		sXML = sXML.replaceAll("checkThreads=[^ /]*", "");
 
 		String sMultiMCMC = this.getClass().getName();
 		while (sMultiMCMC.length() > 0) {
@@ -188,62 +240,202 @@ public class AutoStopMCMC extends MCMC {
 		for (MCMCConvergenceCriterion stoppingCriterium : stoppingCriteria) {
 			stoppingCriterium.setup(m_chains.length, traceInfo);
 		}
+		initCheckExecutor();
+		try {
+			if (restoreFromFile) {
+				restoreCheckpoint();
+			}
 
-		// start threads with individual chains here.
-		m_threads = new Thread[m_chains.length];
-		int k = 0;
-		for (final MCMC mcmc : m_chains) {
-			mcmc.setStateFile(stateFileName + "." +k, restoreFromFile);
-			// need this to keep regression testing time reasonable
-			mcmc.chainLengthInput.setValue(chainLengthInput.get(), this);
-			m_threads[k] = new Thread() {
-				public void run() {
-					try {
-						mcmc.run();
-					} catch (Throwable e) {
-						stopByException = true;
-						e.printStackTrace();
+			if (inProcess && restoreFromFile) {
+				// samples logged before the restart are only available from the log files
+				Log.warning("Reading samples from log files since the run is resumed");
+				inProcess = false;
+			}
+			if (inProcess) {
+				sampleQueues = new BlockingQueue[m_chains.length];
+				try {
+					for (int i = 0; i < m_chains.length; i++) {
+						sampleQueues[i] = new LinkedBlockingQueue<>();
+						m_chains[i].setSampleQueue(sampleQueues[i], m_iLog, m_iTreeLog);
 					}
+				} catch (IllegalArgumentException e) {
+					Log.warning("Reading samples from log files: " + e.getMessage());
+					readFromLogFiles();
 				}
-			};
-			m_threads[k].setName("ASM-thread" + k);
-			m_threads[k].start();
-			k++;
-		}
+			}
+
+			// start threads with individual chains here.
+			m_threads = new Thread[m_chains.length];
+			int k = 0;
+			for (final MCMC mcmc : m_chains) {
+				mcmc.setStateFile(stateFileName + "." +k, restoreFromFile);
+				// need this to keep regression testing time reasonable
+				mcmc.chainLengthInput.setValue(chainLengthInput.get(), this);
+				m_threads[k] = new Thread() {
+					public void run() {
+						try {
+							mcmc.run();
+						} catch (Throwable e) {
+							stopByException = true;
+							e.printStackTrace();
+						}
+					}
+				};
+				m_threads[k].setName("ASM-thread" + k);
+				m_threads[k].start();
+				k++;
+			}
 
-		new LogWatcherThread().start();
+			new LogWatcherThread().start();
 		
-		// wait for the chains to finish
-        m_nStartLogTime = System.currentTimeMillis();
-		for (Thread thread : m_threads) {
+			// wait for the chains to finish
+			m_nStartLogTime = System.currentTimeMillis();
+			for (Thread thread : m_threads) {
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+		
+			// wait 2 seconds for the log to complete and close before exiting the process
+			Log.warning("Wait for the log to complete");
 			try {
-				thread.join();
+				Thread.sleep(2000);
 			} catch (InterruptedException e) {
-				e.printStackTrace();
+				// ingore
 			}
-		}
 		
-		// wait 2 seconds for the log to complete and close before exiting the process
-		Log.warning("Wait for the log to complete");
-		try {
-			Thread.sleep(2000);
-		} catch (InterruptedException e) {
-			// ingore
-		}
-		
-		if (combineLogsInput.get()) {
-			combinelogs(burnInDetector.burnIn(m_nLastReported));
-		}
+			if (combineLogsInput.get()) {
+				combinelogs(burnInDetector.burnIn(m_nLastReported));
+			}
 		
-		for (Logger asmlogger: asmloggers) {
-			asmlogger.close();
+			for (Logger asmlogger: asmloggers) {
+				asmlogger.close();
+			}
+		} finally {
+			if (checkExecutor != null) {
+				checkExecutor.shutdown();
+			}
+			for (MCMCConvergenceCriterion crit : stoppingCriteria) {
+				crit.close();
+			}
 		}
-
 		
 		long end = System.currentTimeMillis();
 		Log.warning("All done in " + (end-start)/1000.0 + " seconds");
 	} // run
 	
+	/** group criteria by shared state, and start threads for evaluating groups if more than one thread is requested **/
+	protected void initCheckExecutor() {
+		criterionGroups = new ArrayList<>();
+		Map<Object, List<MCMCConvergenceCriterion>> groups = new LinkedHashMap<>();
+		for (MCMCConvergenceCriterion crit : stoppingCriteria) {
+			Object sharedState = crit.getSharedState();
+			if (sharedState == null) {
+				sharedState = crit;
+			}
+			groups.computeIfAbsent(sharedState, k -> new ArrayList<>()).add(crit);
+		}
+		criterionGroups.addAll(groups.values());
+
+		int nThreads = Math.min(checkThreadsInput.get(), criterionGroups.size());
+		if (nThreads > 1) {
+			checkExecutor = Executors.newFixedThreadPool(nThreads, r -> {
+				Thread thread = new Thread(r, "ASM-check");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	/** @return file with state of stopping criteria and tree distance cache, next to the state files of the chains **/
+	protected File checkpointFile() {
+		return new File(stateFileName + ".asm");
+	}
+
+	/** write state of stopping criteria and tree distance cache, so that a resumed run can continue where this one left off **/
+	protected void storeCheckpoint() {
+		File file = checkpointFile();
+		File tmpFile = new File(file.getPath() + ".new");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16))) {
+			out.writeInt(CHECKPOINT_MAGIC);
+			out.writeInt(stoppingCriteria.size());
+			for (MCMCConvergenceCriterion crit : stoppingCriteria) {
+				writeString(out, crit.getClass().getName());
+				ByteArrayOutputStream state = new ByteArrayOutputStream();
+				crit.storeState(new DataOutputStream(state));
+				out.writeInt(state.size());
+				state.writeTo(out);
+			}
+			out.writeInt(traceInfo.distances.size());
+			for (Map.Entry<String, DistanceMatrixCache> entry : traceInfo.distances.entrySet()) {
+				writeString(out, entry.getKey());
+				entry.getValue().write(out, traceInfo.getTrees());
+			}
+		} catch (IOException e) {
+			Log.warning("Could not write checkpoint " + tmpFile.getPath() + ": " + e.getMessage());
+			return;
+		}
+		try {
+			// replace the old checkpoint in one go, so a crash while writing leaves the old one intact
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Log.warning("Could not write checkpoint " + file.getPath() + ": " + e.getMessage());
+		}
+	}
+
+	/** restore state written by storeCheckpoint(), if there is any **/
+	protected void restoreCheckpoint() {
+		File file = checkpointFile();
+		if (!file.exists()) {
+			return;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (in.getInt() != CHECKPOINT_MAGIC) {
+				Log.warning("Ignoring " + file.getPath() + " since it is not a checkpoint file");
+				return;
+			}
+			int nCriteria = in.getInt();
+			for (int i = 0; i < nCriteria; i++) {
+				String className = readString(in);
+				byte [] state = new byte[in.getInt()];
+				in.get(state);
+				if (i < stoppingCriteria.size() && stoppingCriteria.get(i).getClass().getName().equals(className)) {
+					stoppingCriteria.get(i).restoreState(new DataInputStream(new ByteArrayInputStream(state)));
+				} else {
+					Log.warning("Stopping criterion " + (i + 1) + " in " + file.getPath() + " is a " + className
+							+ ", which does not match the stopping criteria in the XML, so its state is not restored");
+				}
+			}
+			int nCaches = in.getInt();
+			for (int i = 0; i < nCaches; i++) {
+				DistanceMatrixCache cache = traceInfo.distances.get(readString(in));
+				if (cache == null) {
+					// no criterion uses these distances any more, but its entries still need to be read
+					cache = new DistanceMatrixCache(1);
+				}
+				cache.read(in);
+			}
+			Log.warning("Restored stopping criteria from " + file.getPath());
+		} catch (IOException | RuntimeException e) {
+			Log.warning("Could not restore checkpoint " + file.getPath() + ": " + e.getMessage());
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		byte [] bytes = str.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer in) {
+		byte [] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
 	private void combinelogs(int[] burnIn) throws IOException {
 		Log.info("burnin:" + Arrays.toString(burnIn));
 		for (Logger logger: loggersInput.get()) {
@@ -323,54 +515,51 @@ public class AutoStopMCMC extends MCMC {
 	class LogWatcherThread extends Thread {
 		@Override
 		public void run() {
-			try {
+			try (LogTailer tailer = new LogTailer(pollIntervalInput.get())) {
 				int nThreads = m_chains.length;
 				/* file handle pairs; two for each thread, 
 				 * even numbered files are for the log file, odd numbers for the tree file */
-				BufferedReader [] fin = new BufferedReader[nThreads*2];
-				int nFilesOpened = 0;
-
-				// wait a seconds, the log file should be available
-				sleep(1000);
-				// open files
-				while (stopByException == false && nFilesOpened < nThreads*2) {
-					for (int i = 0; i < nThreads*2; i++) {
-						if (fin[i] == null) {
-							String sFileName = m_chains[i/2].loggersInput.get().get(i%2==0 ? m_iLog : m_iTreeLog).fileNameInput.get();
-							while (!new File(sFileName).exists()) {
-								sleep(1000);
-							}
-							fin[i] = new BufferedReader(new FileReader(sFileName));
-							if (fin[i] != null) {
-								nFilesOpened++;
-							}
+				LogTailer.Tail [] fin = new LogTailer.Tail[nThreads*2];
+
+				// open files, waiting for them to be created if necessary
+				for (int i = 0; i < nThreads*2 && stopByException == false; i++) {
+					String sFileName = m_chains[i/2].loggersInput.get().get(i%2==0 ? m_iLog : m_iTreeLog).fileNameInput.get();
+					fin[i] = tailer.open(sFileName);
+				}
+
+				if (inProcess) {
+					// only need the labels from the trace log header
+					while (stopByException == false && traceInfo.labels == null) {
+						if (!readLogLines(0, fin[0])) {
+							tailer.await();
 						}
 					}
-					if (nFilesOpened < nThreads*2) {
-						sleep(1000);
+					if (traceInfo.labels != null && traceInfo.labels.length != m_chains[0].getColumnCount()) {
+						Log.warning("Reading samples from log files: the trace log has " + traceInfo.labels.length + " columns, but " 
+								+ m_chains[0].getColumnCount() + " values are logged");
+						readFromLogFiles();
 					}
 				}
 
-				// keep polling the tree logs file every second
+				// keep tailing the log files, waking up as soon as any of them changes
+				CheckCadence cadence = new CheckCadence(checkLoadInput.get());
+				int lastCheck = -1;
+				long lastCheckpoint = System.currentTimeMillis();
 				while (true) {
-					int nLinesRead = 0;
-					// grab a tree from every thread
-					slept = false;
-					while (stopByException == false && nLinesRead < nThreads*2) {
-						boolean [] bDone = new boolean[nThreads*2];
-						for (int i = 0; i < nThreads*2; i++) {
-							if (!bDone[i]) {
-								boolean bLineRead = (i%2==0?readLogLines(i/2, fin[i]) : readTreeLogLine(i/2, fin[i]));
-								if (bLineRead) {
-									nLinesRead++;
-									bDone[i] = true;
-								}
+					// read everything that is available from every chain
+					boolean bLinesRead = false;
+					for (int i = 0; i < nThreads; i++) {
+						if (inProcess) {
+							while (readSample(i, 0)) {
+								bLinesRead = true;
+							}
+						} else {
+							while (readLogLines(i, fin[2*i])) {
+								bLinesRead = true;
+							}
+							while (readTreeLogLine(i, fin[2*i+1])) {
+								bLinesRead = true;
 							}
-						}
-						if (nLinesRead< nThreads*2) {
-							// wait a second before seeing if there is more
-							sleep(1000);
-							slept = true;
 						}
 					}
 					
@@ -381,13 +570,30 @@ public class AutoStopMCMC extends MCMC {
 						return;
 					}
 
-					if (!slept && m_nLastReported > 1) {
-						// Log.warning("Checks cannot keep up with log files: expect ESSs higher than targetESS");
-					}
-					if (check()) {
-						return;
+					// check once for the whole batch
+					int end = traceInfo.sampleCount() - 1;
+					cadence.samplesAvailable(end + 1);
+					if (end > lastCheck && cadence.checkDue(end)) {
+						m_nLastReported = end;
+						long start = System.currentTimeMillis();
+						if (check()) {
+							return;
+						}
+						cadence.checked(end, System.currentTimeMillis() - start);
+						lastCheck = end;
+						if (System.currentTimeMillis() - lastCheckpoint > CHECKPOINT_INTERVAL) {
+							storeCheckpoint();
+							lastCheckpoint = System.currentTimeMillis();
+						}
+					} else if (!bLinesRead) {
+						// wait till there is more
+						if (inProcess) {
+							// wait for the chain that is furthest behind
+							readSample(traceInfo.slowestChain(), pollIntervalInput.get());
+						} else {
+							tailer.await();
+						}
 					}
-					m_nLastReported++;	
 				}
 			} catch (Exception e) {
 				e.printStackTrace();
@@ -397,16 +603,13 @@ public class AutoStopMCMC extends MCMC {
 		private boolean check() {
 			Log.info.print("Check " + m_nLastReported + " ");
 			
-			boolean converged = true;
 			long start = System.currentTimeMillis();
 			int [] burnin = burnInDetector.burnIn(m_nLastReported);  // todo this is where burnin is called
 			Log.info.print("burnin:" + Arrays.toString(burnin));
-			for (MCMCConvergenceCriterion crit : stoppingCriteria) {
-				if (!crit.converged(burnin, m_nLastReported)) {
-					converged = false;
-					// break;
-				}
-			}
+			traceInfo.setEarliestBurnIn(burnInDetector.earliestBurnIn(burnin));
+			boolean converged = checkExecutor == null || checkExecutor.isShutdown() ? 
+					checkSequential(burnin) : 
+					checkConcurrent(burnin);
 			long end = System.currentTimeMillis();					
 			//Log.info.println((converged?"Succss!":"failed") + " in " + (end-start) + " mseconds");
 			Log.info.println(" in " + (end-start) + " mseconds");
@@ -423,11 +626,76 @@ public class AutoStopMCMC extends MCMC {
 				return true;
 			}
 			return false;
-		}	
+		}
+
+		private boolean checkSequential(int [] burnin) {
+			boolean converged = true;
+			for (MCMCConvergenceCriterion crit : stoppingCriteria) {
+				if (!crit.converged(burnin, m_nLastReported)) {
+					converged = false;
+					// break;
+				}
+			}
+			return converged;
+		}
+
+		/** evaluate criterion groups on checkExecutor, and wait for all to finish **/
+		private boolean checkConcurrent(int [] burnin) {
+			final int end = m_nLastReported;
+			List<Callable<Boolean>> tasks = new ArrayList<>();
+			for (List<MCMCConvergenceCriterion> group : criterionGroups) {
+				tasks.add(() -> {
+					boolean converged = true;
+					for (MCMCConvergenceCriterion crit : group) {
+						if (!crit.converged(burnin, end)) {
+							converged = false;
+						}
+					}
+					return converged;
+				});
+			}
+
+			// keep screen output of each group together, in the order of the criteria
+			List<ByteArrayOutputStream> buffers = new ArrayList<>();
+			List<Callable<Boolean>> capturedTasks = new ArrayList<>();
+			for (Callable<Boolean> task : tasks) {
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				PrintStream out = new PrintStream(buffer, true);
+				buffers.add(buffer);
+				capturedTasks.add(() -> {
+					CriterionOutput.redirect(out);
+					try {
+						return task.call();
+					} finally {
+						CriterionOutput.redirect(null);
+					}
+				});
+			}
+			boolean converged = true;
+			try {
+				List<Future<Boolean>> results = checkExecutor.invokeAll(capturedTasks);
+				for (Future<Boolean> result : results) {
+					if (!result.get()) {
+						converged = false;
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				converged = false;
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			} finally {
+				for (ByteArrayOutputStream buffer : buffers) {
+					Log.info.print(buffer.toString());
+				}
+				Log.info.flush();
+			}
+			return converged;
+		}
 	} // class LogWatcherThread
 	
 	/** read a line from the log, return true if successful */
-	boolean readLogLines(int iThread, BufferedReader fin) {
+	boolean readLogLines(int iThread, LogTailer.Tail fin) {
 		try {
 			String sStr = null;
 			String [] sStrs = null;;
@@ -445,25 +713,22 @@ public class AutoStopMCMC extends MCMC {
 				return false;
 			}
 
-			if (traceInfo.logLines[0] == null) {
-				for (int i = 0; i < m_chains.length; i++) {
-					traceInfo.logLines[i] = new List[nItems];
-				}
-				for (int i = 0; i < m_chains.length; i++) {
-					for (int j = 0; j < nItems; j++) {
-						traceInfo.logLines[i][j] = new ArrayList<>();
-					}
-				}
-			}
-			
 			try {
+				double [] values = new double[nItems];
 				for (int i = 0; i < nItems; i++) {
 					try {
-						traceInfo.logLines[iThread][i].add(Double.parseDouble(sStrs[i]));
+						values[i] = Double.parseDouble(sStrs[i]);
 					} catch (NumberFormatException e) {
-						traceInfo.logLines[iThread][i].add(0.0);
+						values[i] = 0.0;
 					}
 				}
+				if (!traceInfo.addLogLine(iThread, values)) {
+					Log.warning.println("Ignoring trace log line with " + nItems + " values that does not match the trace log columns, "
+							+ "and its tree: " + sStr);
+					// keep trace and tree samples aligned by skipping the tree of this sample too
+					skippedSamples(iThread).add((long) values[0]);
+					return true;
+				}
 			} catch (Exception e) {
 				//ignore, probably a parse errors
 				if (iThread == 0) {
@@ -481,9 +746,29 @@ public class AutoStopMCMC extends MCMC {
 
 
 	private TaxonSet taxonSet = null;
+	private String [] taxonNames = null;
+
+	/** for every chain, sample numbers of ignored trace log lines, the trees of which are skipped as well **/
+	private Set<Long> [] skippedSamples;
+
+	private Set<Long> skippedSamples(int iThread) {
+		if (skippedSamples == null) {
+			skippedSamples = new Set[m_chains.length];
+			for (int i = 0; i < skippedSamples.length; i++) {
+				skippedSamples[i] = new HashSet<>();
+			}
+		}
+		return skippedSamples[iThread];
+	}
 	
 	/** read a single tree from the tree log file, return true if successful **/
-	boolean readTreeLogLine(int iThread, BufferedReader fin) {
+	boolean readTreeLogLine(int iThread, LogTailer.Tail fin) {
+		// trees are not read ahead of the trace log, so the trace log line of a tree
+		// is known to be ignored or not by the time the tree is read
+		TraceColumn [] traceLog = traceInfo.logLines[iThread];
+		if (traceLog == null || traceInfo.treeCount(iThread) >= traceLog[0].size()) {
+			return false;
+		}
 		String sStr = null;
 		do {
 			try {
@@ -492,21 +777,22 @@ public class AutoStopMCMC extends MCMC {
 				e1.printStackTrace();
 			}
 			if (sStr == null) {
-				try {
-					// wait 2.5 seconds till tree becomes available
-					Thread.sleep(1000);
-					slept = true;
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
+				// no complete tree available yet
+				return false;
 			}
 			if (taxonSet == null && sStr.toLowerCase().trim().equals("translate")) {
 				List<Taxon> taxa = new ArrayList<>();
 				while (!sStr.contains(";")) {
 					try {
 						sStr = fin.readLine();
-					} catch (IOException e1) {
+						while (sStr == null) {
+							// translate block is not completely written yet
+							fin.await();
+							sStr = fin.readLine();
+						}
+					} catch (IOException | InterruptedException e1) {
 						e1.printStackTrace();
+						return false;
 					}
 					if (!sStr.contains(";")) {
 						sStr = sStr.trim();
@@ -518,9 +804,17 @@ public class AutoStopMCMC extends MCMC {
 					}
 				}
 				taxonSet = new TaxonSet(taxa);
+				taxonNames = new String[taxa.size()];
+				for (int i = 0; i < taxa.size(); i++) {
+					taxonNames[i] = taxonSet.getTaxonId(i);
+				}
 			}
-		} while (sStr == null || !sStr.matches("tree STATE.*")); // ignore non-tree lines
+		} while (!sStr.matches("tree STATE.*")); // ignore non-tree lines
 
+		String state = sStr.substring("tree STATE_".length()).split("[\\s=]")[0];
+		if (skippedSamples != null && skippedSamples[iThread].remove(Long.parseLong(state))) {
+			return true;
+		}
 		sStr = sStr.substring(sStr.indexOf("("));
 		TreeParser parser = new TreeParser();
 		parser.m_taxonset.setValue(taxonSet, parser);
@@ -528,15 +822,43 @@ public class AutoStopMCMC extends MCMC {
 		Node root = parser.parseNewick(sStr);
 		parser.setRoot(root);
 		Tree tree = parser.copy();
-		tree.m_taxonset.setValue(taxonSet, tree);
 		tree.initArrays();
-		for (int i = 0; i < tree.getLeafNodeCount(); i++) {
-			tree.getNode(i).setID(taxonSet.getTaxonId(i));
-		}
-		traceInfo.trees[iThread].add(tree);
+		traceInfo.addTree(iThread, new CompactTree(tree, taxonNames));
 		return true;
 	} // readTreeLogLine
 
+	/** stop handing samples over in-process, and read all samples from the log files, which contain all samples from the start **/
+	private void readFromLogFiles() {
+		for (MCMCChain chain : m_chains) {
+			chain.clearSampleQueue();
+		}
+		inProcess = false;
+		sampleQueues = null;
+	}
+
+	/** whether a warning about samples not matching the trace log header was given **/
+	private boolean columnCountWarned = false;
+
+	/** take a sample logged by a chain from its queue, waiting at most timeout milliseconds, 
+	 * return true if successful **/
+	boolean readSample(int iThread, long timeout) throws InterruptedException {
+		ChainSample sample = sampleQueues[iThread].poll(timeout, TimeUnit.MILLISECONDS);
+		if (sample == null) {
+			return false;
+		}
+		if (!traceInfo.addLogLine(iThread, sample.getValues())) {
+			// keep trace and tree samples aligned by skipping both
+			if (!columnCountWarned) {
+				Log.warning.println("Ignoring sample with " + sample.getValues().length + " values from chain " + iThread + 
+						" that does not match the trace log columns");
+				columnCountWarned = true;
+			}
+			return true;
+		}
+		traceInfo.addTree(iThread, sample.getTree());
+		return true;
+	} // readSample
+
 
 	
 
@@ -0,0 +1,46 @@
+package asm.inference;
+
+/**
+ * ESS estimate based on overlapping batch means, which takes O(n) for a trace of length n.
+ * The variance of the mean of the trace is estimated from the variance of the means
+ * of all batches of sqrt(n) consecutive samples, and ESS = n * var(trace) / (n * var(mean)).
+ */
+public class BatchMeansESS implements ESSEstimator {
+
+	@Override
+	public double calcESS(double [] trace, int start, int end) {
+		int n = end - start;
+		int batchSize = (int) Math.sqrt(n);
+		if (batchSize < 1 || n - batchSize < 1) {
+			return Double.NaN;
+		}
+
+		double mean = 0;
+		for (int t = start; t < end; t++) {
+			mean += trace[t];
+		}
+		mean /= n;
+
+		double variance = 0;
+		for (int t = start; t < end; t++) {
+			variance += (trace[t] - mean) * (trace[t] - mean);
+		}
+		variance /= n - 1;
+
+		// sliding window over all n - batchSize + 1 batches
+		double batchSum = 0;
+		for (int t = start; t < start + batchSize; t++) {
+			batchSum += trace[t] - mean;
+		}
+		double sumOfSquares = batchSum * batchSum;
+		for (int t = start + batchSize; t < end; t++) {
+			batchSum += (trace[t] - mean) - (trace[t - batchSize] - mean);
+			sumOfSquares += batchSum * batchSum;
+		}
+		// sumOfSquares is in terms of batch sums, so divide by batchSize^2 to get batch means
+		double asymptoticVariance = (double) n * batchSize / ((n - batchSize) * (n - batchSize + 1.0))
+				* sumOfSquares / ((double) batchSize * batchSize);
+
+		return n * variance / asymptoticVariance;
+	}
+}
@@ -0,0 +1,174 @@
+package asm.inference;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * DistanceStore in segments of byte buffers, which are heap buffers, direct buffers
+ * (outside the Java heap, so these do not add to garbage collection time) or regions
+ * of a memory-mapped file.
+ */
+public class BufferDistanceStore implements DistanceStore {
+	/** entries per segment **/
+	final static int SEGMENT_BITS = 20;
+	final static int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+	final static long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	private final long size;
+	/** bytes per entry: 1, 2 or 4 **/
+	private final int width;
+	private final DistanceStorage storage;
+	private final AtomicReferenceArray<ByteBuffer> segments;
+	/** file backing the segments for mapped storage, deleted on close **/
+	private final Path file;
+	private final FileChannel channel;
+
+	/** @param file file to map for Mapped storage, ignored otherwise **/
+	public BufferDistanceStore(long size, int width, DistanceStorage storage, Path file) {
+		if (width != 1 && width != 2 && width != 4) {
+			throw new IllegalArgumentException("width should be 1, 2 or 4 bytes, not " + width);
+		}
+		this.size = size;
+		this.width = width;
+		this.storage = storage;
+		this.file = file;
+		segments = new AtomicReferenceArray<>((int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_BITS));
+		try {
+			channel = storage == DistanceStorage.Mapped ? 
+					FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE) : null;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public int get(long index) {
+		ByteBuffer segment = segments.get((int) (index >>> SEGMENT_BITS));
+		if (segment == null) {
+			return 0;
+		}
+		int offset = (int) (index & SEGMENT_MASK) * width;
+		switch (width) {
+		case 1:
+			return segment.get(offset) & 0xFF;
+		case 2:
+			return segment.getShort(offset) & 0xFFFF;
+		default:
+			return segment.getInt(offset);
+		}
+	}
+
+	@Override
+	public void set(long index, int value) {
+		int i = (int) (index >>> SEGMENT_BITS);
+		ByteBuffer segment = segments.get(i);
+		if (segment == null) {
+			if (value == 0) {
+				return;
+			}
+			segment = segment(i);
+		}
+		int offset = (int) (index & SEGMENT_MASK) * width;
+		switch (width) {
+		case 1:
+			segment.put(offset, (byte) value);
+			break;
+		case 2:
+			segment.putShort(offset, (short) value);
+			break;
+		default:
+			segment.putInt(offset, value);
+		}
+	}
+
+	/** allocate segment i, and publish it unless another thread did so first **/
+	private ByteBuffer segment(int i) {
+		int bytes = SEGMENT_SIZE * width;
+		ByteBuffer segment;
+		switch (storage) {
+		case Heap:
+			segment = ByteBuffer.allocate(bytes);
+			break;
+		case Direct:
+			segment = ByteBuffer.allocateDirect(bytes);
+			break;
+		default:
+			try {
+				// mapping the same region twice is harmless: both map the same file content
+				segment = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * bytes, bytes);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		segment.order(ByteOrder.nativeOrder());
+		if (!segments.compareAndSet(i, null, segment)) {
+			segment = segments.get(i);
+		}
+		return segment;
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public long maxValue() {
+		return width == 4 ? Integer.MAX_VALUE : (1L << (8 * width)) - 1;
+	}
+
+	/** segments are written as a flag whether present followed by the bytes of the segment **/
+	@Override
+	public void write(DataOutputStream out) throws IOException {
+		byte [] buf = new byte[1 << 16];
+		for (int i = 0; i < segments.length(); i++) {
+			ByteBuffer segment = segments.get(i);
+			out.writeBoolean(segment != null);
+			if (segment != null) {
+				ByteBuffer src = segment.duplicate();
+				src.clear();
+				while (src.hasRemaining()) {
+					int n = Math.min(buf.length, src.remaining());
+					src.get(buf, 0, n);
+					out.write(buf, 0, n);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void read(ByteBuffer in) {
+		int bytes = SEGMENT_SIZE * width;
+		for (int i = 0; i < segments.length(); i++) {
+			if (in.get() != 0) {
+				ByteBuffer src = in.duplicate();
+				src.limit(src.position() + bytes);
+				ByteBuffer segment = segment(i).duplicate();
+				segment.clear();
+				segment.put(src);
+				in.position(in.position() + bytes);
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		if (channel != null) {
+			try {
+				channel.close();
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				// e.g. on systems that do not allow deleting files that are still mapped
+				file.toFile().deleteOnExit();
+			}
+		}
+	}
+}
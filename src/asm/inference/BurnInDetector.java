@@ -2,7 +2,6 @@ package asm.inference;
 
 
 import java.util.Arrays;
-import java.util.List;
 
 import beast.base.core.Description;
 import beast.base.core.Log;
@@ -35,6 +34,20 @@ public class BurnInDetector {
 		return burnin;
 	}
 	
+	/** @return lowest burn-in that later calls of burnIn() can return, given burnin was returned for the current end **/
+	public int earliestBurnIn(int [] burnin) {
+		if (burnInStrat.equals(BurnInStrategy.Running)) {
+			// a fixed percentage of end does not decrease when end grows
+			int earliest = Integer.MAX_VALUE;
+			for (int b : burnin) {
+				earliest = Math.min(earliest, b);
+			}
+			return earliest;
+		}
+		// the automatic burn-in can move back to the start of the chain
+		return 0;
+	}
+	
 	private int burnIn(int chainNr, int end) {
 		int maxBurnin = 0;
 		int [] map = traceInfo.getMap();
@@ -48,14 +61,11 @@ public class BurnInDetector {
 	
 	final static int WINDOW_SIZE = 10;
 	
-	private int burnIn(List<Double> trace, int end) {
+	private int burnIn(TraceColumn trace, int end) {
 		// calc mean and stdev of last 25%
 		double m2 = 0, sq2 = 0;
 		int lb = 3*end/4;
-		for (int i = lb; i < end; i++) {
-			double d = trace.get(i);
-			m2 += d;
-		}
+		m2 = trace.sum(lb, end);
 		m2 = m2 / (end - lb);
 		for (int i = lb; i < end; i++) {
 			double d = trace.get(i);
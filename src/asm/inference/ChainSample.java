@@ -0,0 +1,27 @@
+package asm.inference;
+
+/**
+ * A single logged sample of a chain, as handed over in-process from an
+ * MCMCChain to the AutoStopMCMC log watcher: the values of the trace log line
+ * (starting with the sample number) plus the topology and heights of the tree that was logged.
+ */
+public class ChainSample {
+	/** values of the trace log line, first entry is the sample number **/
+	final double [] values;
+	
+	/** tree at the time of logging **/
+	final CompactTree tree;
+	
+	public ChainSample(double [] values, CompactTree tree) {
+		this.values = values;
+		this.tree = tree;
+	}
+	
+	public double [] getValues() {
+		return values;
+	}
+	
+	public CompactTree getTree() {
+		return tree;
+	}
+}
@@ -0,0 +1,76 @@
+package asm.inference;
+
+import beast.base.core.Log;
+
+/**
+ * Determines how often the stopping criteria are checked, based on the time taken
+ * by a check compared to the rate at which the chains log new samples.
+ * When checks are cheap every new sample is checked. When a check takes longer than
+ * logging a sample, checks are spaced out so that checking takes at most a fraction
+ * maxLoad of the time, and the samples logged in the mean time are processed in one batch.
+ */
+public class CheckCadence {
+	/** weight of the latest measurement in the running averages **/
+	final static double SMOOTHING = 0.2;
+
+	/** maximum fraction of time spent on checks **/
+	private final double maxLoad;
+
+	/** running average of the time in milliseconds taken by a check **/
+	private double checkTime = 0;
+	/** running average of the time in milliseconds between two samples **/
+	private double sampleInterval = 0;
+
+	/** number of samples available in all chains at time sampleTime **/
+	private int sampleCount = 0;
+	private long sampleTime;
+
+	/** last sample that was checked **/
+	private int lastCheck = -1;
+	/** number of new samples required before the next check **/
+	private int stride = 1;
+	/** stride at which to warn that checks cannot keep up **/
+	private int reportStride = 2;
+
+	public CheckCadence(double maxLoad) {
+		if (maxLoad <= 0 || maxLoad > 1) {
+			throw new IllegalArgumentException("maximum check load should be between 0 and 1, not " + maxLoad);
+		}
+		this.maxLoad = maxLoad;
+	}
+
+	/** record the number of samples that are available for all chains **/
+	public void samplesAvailable(int count) {
+		long now = System.currentTimeMillis();
+		if (count > sampleCount) {
+			if (sampleCount > 0) {
+				double interval = (double) (now - sampleTime) / (count - sampleCount);
+				sampleInterval = sampleInterval == 0 ? interval : (1 - SMOOTHING) * sampleInterval + SMOOTHING * interval;
+			}
+			sampleCount = count;
+			sampleTime = now;
+		}
+	}
+
+	/** @return true if sample end should be checked **/
+	public boolean checkDue(int end) {
+		return end >= lastCheck + stride;
+	}
+
+	/** record that checking sample end took duration milliseconds **/
+	public void checked(int end, long duration) {
+		lastCheck = end;
+		checkTime = checkTime == 0 ? duration : (1 - SMOOTHING) * checkTime + SMOOTHING * duration;
+		if (sampleInterval > 0) {
+			stride = Math.max(1, (int) Math.ceil(checkTime / (maxLoad * sampleInterval)));
+		}
+		if (stride >= reportStride) {
+			Log.warning("Checks cannot keep up with log files: checking every " + stride + " samples");
+			reportStride = 2 * stride;
+		}
+	}
+
+	public int getStride() {
+		return stride;
+	}
+}
@@ -0,0 +1,115 @@
+package asm.inference;
+
+import java.util.Arrays;
+
+/**
+ * Assigns dense ids 0,1,2,... to clades, identified by a 128 bit hash of their set of taxa.
+ * The hash of a clade is the XOR of random keys of its taxa, so it is calculated bottom-up
+ * in constant time per node, and is the same for any order of the taxa and the children of a node.
+ * Hashes are kept in an open addressing table of primitive arrays, so looking up the clades
+ * of a tree is O(n) and creates no garbage.
+ */
+public class CladeDictionary {
+	private final static long SEED1 = 0x2545F4914F6CDD1DL;
+	private final static long SEED2 = 0x9E3779B97F4A7C15L;
+
+	/** hash table of clade keys, with id+1 of the clade, or 0 for empty slots **/
+	private long [] keys1, keys2;
+	private int [] slots;
+	private int size;
+
+	/** keys of the clade below every internal node, in order of rank, used while looking up clades of a tree **/
+	private long [] nodeKeys1 = new long[0], nodeKeys2 = new long[0];
+
+	public CladeDictionary() {
+		keys1 = new long[1024];
+		keys2 = new long[1024];
+		slots = new int[1024];
+	}
+
+	/** @return number of distinct clades seen so far **/
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Look up (and assign ids to new) clades below internal nodes of tree
+	 * @param tree tree to look up clades for
+	 * @param cladeIds array of at least leafCount-1 entries, filled with ids of clades
+	 * of internal nodes in order of rank, so the root clade comes last
+	 */
+	public void getCladeIds(CompactTree tree, int [] cladeIds) {
+		int leafCount = tree.getLeafCount();
+		if (nodeKeys1.length < leafCount - 1) {
+			nodeKeys1 = new long[leafCount - 1];
+			nodeKeys2 = new long[leafCount - 1];
+		}
+		int [] bit = tree.getLeafBits();
+		int [] rankedChildren = tree.getRankedChildren();
+		for (int r = 0; r < leafCount - 1; r++) {
+			long key1 = 0, key2 = 0;
+			for (int k = 0; k < 2; k++) {
+				int child = rankedChildren[2 * r + k];
+				if (child < leafCount) {
+					long b = bit == null ? child : bit[child];
+					key1 ^= CompactTree.mix(b * SEED2 + SEED1);
+					key2 ^= CompactTree.mix(b * SEED1 + SEED2);
+				} else {
+					key1 ^= nodeKeys1[child - leafCount];
+					key2 ^= nodeKeys2[child - leafCount];
+				}
+			}
+			nodeKeys1[r] = key1;
+			nodeKeys2[r] = key2;
+			cladeIds[r] = getId(key1, key2);
+		}
+	}
+
+	/** @return id of clade with given key, assigning a new id if it was not seen before **/
+	private int getId(long key1, long key2) {
+		int mask = slots.length - 1;
+		int i = (int) CompactTree.mix(key1 ^ key2) & mask;
+		while (slots[i] != 0) {
+			if (keys1[i] == key1 && keys2[i] == key2) {
+				return slots[i] - 1;
+			}
+			i = (i + 1) & mask;
+		}
+		keys1[i] = key1;
+		keys2[i] = key2;
+		slots[i] = ++size;
+		if (2 * size > slots.length) {
+			grow();
+		}
+		return size - 1;
+	}
+
+	/** double the table size when it is half full **/
+	private void grow() {
+		long [] oldKeys1 = keys1, oldKeys2 = keys2;
+		int [] oldSlots = slots;
+		keys1 = new long[oldSlots.length * 2];
+		keys2 = new long[oldSlots.length * 2];
+		slots = new int[oldSlots.length * 2];
+		int mask = slots.length - 1;
+		for (int j = 0; j < oldSlots.length; j++) {
+			if (oldSlots[j] != 0) {
+				int i = (int) CompactTree.mix(oldKeys1[j] ^ oldKeys2[j]) & mask;
+				while (slots[i] != 0) {
+					i = (i + 1) & mask;
+				}
+				keys1[i] = oldKeys1[j];
+				keys2[i] = oldKeys2[j];
+				slots[i] = oldSlots[j];
+			}
+		}
+	}
+
+	/** @return counts, grown if necessary to hold a count for every clade id **/
+	int [] ensureCapacity(int [] counts) {
+		if (counts.length < size) {
+			return Arrays.copyOf(counts, Math.max(size, counts.length * 2));
+		}
+		return counts;
+	}
+}
@@ -1,36 +1,67 @@
 package asm.inference;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 import beast.base.core.BEASTObject;
 import beast.base.core.Description;
 import beast.base.core.Input;
-import beast.base.evolution.tree.Node;
-import beast.base.evolution.tree.Tree;
 
 @Description("Pairwise convergence criterion based on the difference in clade support between the chains")
 public class CladeDifference extends BEASTObject implements MCMCConvergenceCriterion {
 	public Input<Double> acceptedThresholdInput = new Input<>("threshold", "level at which the biggest clade support difference is still acceptable", 0.25);
+	public Input<Integer> treeLimitInput = new Input<>("treeLimit", "maximum number of trees per chain whose clades are kept "
+			+ "for moving the burn-in (default 4096). When the limit is reached, only every other tree is counted", 4096);
 
 	/** maximum difference of clade probabilities for chain 1 & 2 **/
 	List<Double> m_fMaxCladeProbDiffs;
 	
-	/** for each thread, keeps track of the frequency of clades **/
-	Map<String, Integer> [] m_cladeMaps;
+	/** ids of clades, shared by all chains **/
+	CladeDictionary m_clades;
+
+	/** for each thread, keeps track of the frequency of clades in the current window, indexed by clade id **/
+	int [][] m_cladeCounts;
+
+	/** for each thread, ids of clades of every processed tree, so trees can be
+	 * removed from and added back to the window without keeping the trees themselves.
+	 * Entries are null for trees off the grid of m_delta, and for trees before the
+	 * earliest burn-in, so at most treeLimit+1 trees per chain have ids **/
+	List<int []> [] m_treeClades;
+
+	/** only trees with index a multiple of m_delta are counted, doubled when more than treeLimit trees would be kept **/
+	int m_delta = 1;
+	/** ids of trees before m_dropped are dropped, since the burn-in cannot move back that far **/
+	int m_dropped = 0;
+	/** number of trees counted in the window of every chain **/
+	int m_counted = 0;
+
+	/** for every clade, difference between the largest and smallest count over all chains **/
+	int [] m_spread = new int[0];
+	/** for every spread > 0, number of clades with that spread **/
+	int [] m_spreadCounts = new int[1];
+	/** upper bound of the largest spread of any clade **/
+	int m_maxSpread = 0;
+
+	/** window of trees currently counted, the same for all chains **/
+	int m_start = 0, m_end = 0;
 	
 	/** total nr of clades in a tree **/
 	int m_nClades = 1;
 	
 	int nChains;
 	double acceptedThreshold;
-	List<Tree>[] trees;
+	int treeLimit;
+	List<CompactTree>[] trees;
+	TraceInfo traceInfo;
 	
 	@Override
 	public void initAndValidate() {
 		acceptedThreshold = acceptedThresholdInput.get();
+		treeLimit = treeLimitInput.get();
+		if (treeLimit <= 0) {
+			throw new IllegalArgumentException("treeLimit should be positive, not " + treeLimit);
+		}
 
 	}
 
@@ -41,120 +72,151 @@ public class CladeDifference extends BEASTObject implements MCMCConvergenceCrite
 	public boolean converged(int[] burnin, int available) {
 		// see if any of the trees has not been processed yet
 //		int available = trees[0].size();
-//		for (List<Tree> d : trees) {
+//		for (List<CompactTree> d : trees) {
 //			available = Math.min(available, d.size());
 //		}
+		// use the same window for all chains, so clade counts are comparable
+		int start = 0;
+		for (int b : burnin) {
+			start = Math.max(start, Math.min(b, available));
+		}
+		int earliest = Math.min(traceInfo.getEarliestBurnIn(), start);
+
+		// count fewer trees rather than keeping clades of more than treeLimit trees
+		while ((available - Math.max(m_dropped, earliest)) / m_delta > treeLimit) {
+			thin(2 * m_delta);
+		}
+
 		// if so, process these trees
 		for (int i = current; i < available; i++) {
 			for (int j = 0; j < nChains; j++) {
-				process(j, trees[j].get(i).getRoot());
+				if (i % m_delta == 0) {
+					process(j, trees[j].get(i));
+				} else {
+					m_treeClades[j].add(null);
+				}
 			}
 		}
 		current = available;
+		// processed trees are not needed any more, only their clade ids
+		traceInfo.retainTrees(this, current, m_delta);
+		for (int j = 0; j < nChains; j++) {
+			m_cladeCounts[j] = m_clades.ensureCapacity(m_cladeCounts[j]);
+		}
+		m_spread = m_clades.ensureCapacity(m_spread);
+		if (m_spreadCounts.length <= available) {
+			m_spreadCounts = Arrays.copyOf(m_spreadCounts, 2 * available + 1);
+		}
 
+		moveWindow(start, available);
+		drop(Math.min(earliest, m_start));
 		
 		// check clade support differences
-		double fMaxCladeProbDiff = 0;
-		for (int i = 0; i < nChains; i++) {
-			for (int k = 0; k < nChains; k++) {
-				fMaxCladeProbDiff = Math.max(fMaxCladeProbDiff, calcMaxCladeDifference(i, k));
-			}
+		while (m_maxSpread > 0 && m_spreadCounts[m_maxSpread] == 0) {
+			m_maxSpread--;
 		}
+		int nTotal = m_counted * (m_nClades - 1);
+		double fMaxCladeProbDiff = m_maxSpread / (double) (nTotal/m_nClades);
 		m_fMaxCladeProbDiffs.add(fMaxCladeProbDiff);
 		return fMaxCladeProbDiff < acceptedThreshold;
 	}
 
-	@Override
-	public void setup(int nChains, TraceInfo traceInfo) {
-		this.nChains = nChains;
-		this.trees = traceInfo.trees;
-		m_fMaxCladeProbDiffs = new ArrayList<>();
-		m_cladeMaps = new Map[nChains];
-		for (int i = 0; i < nChains; i++) {
-			m_cladeMaps[i] = new HashMap<>();
-		}
-
-	}
-	
-	/** calculate maximum difference of clade probabilities 
-	 * of 2 threads. It uses only the clades in thread1, so
-	 * it requires two calls to make sure no clades in thread2
-	 * are missed, i.e. use max(calcMaxCladeDifference(iThread1, iThread2), calcMaxCladeDifference(iThread2, iThread2)) 
-	 **/
-	/** TODO: can be done incrementally?!? **/
-	double calcMaxCladeDifference(int iThread1, int iThread2) {
-		if (iThread1 == iThread2) {
-			return 0;
-		}
-		int nTotal = 0;
-		int nMax = 0;
-		Map<String, Integer> map1 = m_cladeMaps[iThread1];
-		Map<String, Integer> map2 = m_cladeMaps[iThread2];
-		for (String sClade : map1.keySet()) {
-			int i1 = map1.get(sClade);
-			int i2 = 0;
-			if (map2.containsKey(sClade)) {
-				i2 = map2.get(sClade);
+	/** update clade counts for window of trees moving to [start, end) in all chains **/
+	private void moveWindow(int start, int end) {
+		// trees that enter or leave the window are in [min(start,m_start), max(start,m_start)) or [m_end, end)
+		for (int i = Math.min(start, m_start); i < end; i++) {
+			if (i == Math.max(start, m_start)) {
+				i = Math.max(i, m_end);
+				if (i >= end) {
+					break;
+				}
+			}
+			boolean wasIn = i >= m_start && i < m_end;
+			boolean isIn = i >= start && i < end;
+			if (wasIn != isIn && m_treeClades[0].get(i) != null) {
+				for (int j = 0; j < nChains; j++) {
+					updateCounts(j, m_treeClades[j].get(i), isIn ? 1 : -1);
+				}
+				m_counted += isIn ? 1 : -1;
 			}
-			nTotal += i1;
-			nMax = Math.max(nMax, Math.abs(i1 - i2));
 		}
-		return nMax / (double) (nTotal/m_nClades);
-	} // calcMaxCladeDifference
-
-
-	/** get clades from tree and store them in a list in String format **/
-	int [] traverse(Node node, List<String> sClades) {
-		int [] clade = null;
-		if (node.isLeaf()) {
-			clade = new int[1];
-			clade[0] = node.getNr();
-		} else {
-			int [] leftClade = traverse(node.getLeft(), sClades);
-			int [] rightClade = traverse(node.getRight(), sClades);
-			
-			// merge clade with rightClade
-			clade = new int[leftClade.length + rightClade.length];
-			int i = 0, iLeft = 0, iRight = 0;
-			while (i < clade.length) {
-				if (leftClade[iLeft] < rightClade[iRight]) {
-					clade[i] = leftClade[iLeft++];
-					if (iLeft == leftClade.length) {
-						while (iRight < rightClade.length) {
-							clade[++i] = rightClade[iRight++];
-						}
-					}
-				} else {
-					clade[i] = rightClade[iRight++]; 
-					if (iRight == rightClade.length) {
-						while (iLeft < leftClade.length) {
-							clade[++i] = leftClade[iLeft++];
-						}
+		m_start = start;
+		m_end = end;
+	}
+
+	/** keep clade ids only for trees with index a multiple of delta, removing the others from the window **/
+	private void thin(int delta) {
+		for (int i = m_dropped; i < current; i++) {
+			if (i % delta != 0 && m_treeClades[0].get(i) != null) {
+				boolean isIn = i >= m_start && i < m_end;
+				for (int j = 0; j < nChains; j++) {
+					if (isIn) {
+						updateCounts(j, m_treeClades[j].get(i), -1);
 					}
+					m_treeClades[j].set(i, null);
+				}
+				if (isIn) {
+					m_counted--;
 				}
-				i++;
 			}
-			String sClade = "";
-			for (i = 0; i < clade.length; i++) {
-				sClade += clade[i] + ",";
+		}
+		m_delta = delta;
+	}
+
+	/** drop clade ids of trees before index, which are outside the window **/
+	private void drop(int index) {
+		for (int i = m_dropped; i < index; i++) {
+			for (int j = 0; j < nChains; j++) {
+				m_treeClades[j].set(i, null);
 			}
-			sClades.add(sClade);
 		}
-		return clade;
+		m_dropped = Math.max(m_dropped, index);
 	}
-	
 
-	public void process(int chainNr, Node root) {
-		List<String> sClades = new ArrayList<String>();
-		m_nClades = traverse(root, sClades).length;
-		Map<String, Integer> cladeMap = m_cladeMaps[chainNr];
-		for (String sClade : sClades) {
-			if (cladeMap.containsKey(sClade)) {
-				cladeMap.put(sClade, cladeMap.get(sClade) + 1);
-			} else {
-				cladeMap.put(sClade, 1);
+	/** add delta to counts of clades in chain, and update spreads of these clades **/
+	private void updateCounts(int chainNr, int [] cladeIds, int delta) {
+		for (int clade : cladeIds) {
+			m_cladeCounts[chainNr][clade] += delta;
+			int min = m_cladeCounts[0][clade], max = min;
+			for (int j = 1; j < nChains; j++) {
+				min = Math.min(min, m_cladeCounts[j][clade]);
+				max = Math.max(max, m_cladeCounts[j][clade]);
+			}
+			int spread = max - min;
+			if (spread != m_spread[clade]) {
+				if (m_spread[clade] > 0) {
+					m_spreadCounts[m_spread[clade]]--;
+				}
+				if (spread > 0) {
+					m_spreadCounts[spread]++;
+				}
+				m_spread[clade] = spread;
+				m_maxSpread = Math.max(m_maxSpread, spread);
 			}
 		}
+	}
 
+	@Override
+	public void setup(int nChains, TraceInfo traceInfo) {
+		this.nChains = nChains;
+		this.trees = traceInfo.trees;
+		this.traceInfo = traceInfo;
+		traceInfo.retainTrees(this, current, 1);
+		m_fMaxCladeProbDiffs = new ArrayList<>();
+		m_clades = new CladeDictionary();
+		m_cladeCounts = new int[nChains][0];
+		m_treeClades = new List[nChains];
+		for (int i = 0; i < nChains; i++) {
+			m_treeClades[i] = new ArrayList<>();
+		}
+
+	}
+	
+	/** look up clades of tree, which is added to the window of chainNr at the next check **/
+	public void process(int chainNr, CompactTree tree) {
+		m_nClades = tree.getLeafCount();
+		int [] cladeIds = new int[m_nClades - 1];
+		m_clades.getCladeIds(tree, cladeIds);
+		m_treeClades[chainNr].add(cladeIds);
 	}
 }
@@ -0,0 +1,299 @@
+package asm.inference;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+
+/**
+ * Topology and node heights of a binary tree, stored in flat arrays instead of Node objects.
+ * Nodes are numbered as in the BEAST tree it is created from: leaves 0,...,n-1
+ * and internal nodes n,...,2n-2. A full Tree can be constructed on demand with toTree().
+ *
+ * For calculating RNNI distances, the ranked tree is stored as well: internal nodes ordered
+ * by height, with children encoded as leaf number for leaves and n+rank-1 for internal
+ * nodes of rank 1,...,n-1, so these do not need to be recalculated for every pair of trees.
+ * For Robinson-Foulds distances, hashes of the clades, or a sketch of these, are calculated when the tree
+ * is logged (see TreeMetric.prepare()), or on first use.
+ *
+ * Trees with the same ranked topology have the same distance to any other tree, whatever the
+ * metric, so TraceInfo gives these the same topology id, based on topologyHash(), at least
+ * until it has seen TraceInfo.MAX_TOPOLOGIES topologies and starts giving out new ids.
+ */
+public class CompactTree {
+	/** number of leaves **/
+	private final int leafCount;
+	/** left and right child of internal node i are at 2*(i-leafCount) and 2*(i-leafCount)+1 **/
+	private final int [] children;
+	/** height of node i **/
+	private final double [] heights;
+	/** number of the root node **/
+	private final int root;
+	/** taxon names of the leaves, shared among trees from the same tree log, or null if unknown **/
+	private final String [] taxa;
+	/** children of the internal node of rank r (1,...,n-1) at 2*(r-1) and 2*(r-1)+1, encoded as described above **/
+	private final int [] rankedChildren;
+	/** sorted hashes of clades below internal nodes other than the root, or null if not calculated yet **/
+	private volatile long [] cladeHashes;
+	/** smallest clade hashes, for approximating Robinson-Foulds distances, one sketch for every sketch size
+	 * in use, or null if not calculated yet. Replaced as a whole when a sketch is added. **/
+	private volatile long [][] cladeSketches;
+
+	/** id shared by trees with the same ranked topology, assigned by TraceInfo, or -1 if not assigned **/
+	int topologyId = -1;
+	/** whether an earlier tree had the same topology id **/
+	boolean repeatedTopology;
+
+	/** bit of every leaf in clade bitsets for every taxa array, the same for any order of the taxa **/
+	private final static Map<String [], int []> leafBits = Collections.synchronizedMap(new WeakHashMap<>());
+
+	public CompactTree(Tree tree, String [] taxa) {
+		leafCount = tree.getLeafNodeCount();
+		children = new int[2 * (leafCount - 1)];
+		heights = new double[2 * leafCount - 1];
+		root = tree.getRoot().getNr();
+		this.taxa = taxa;
+		for (Node node : tree.getNodesAsArray()) {
+			int nr = node.getNr();
+			heights[nr] = node.getHeight();
+			if (!node.isLeaf()) {
+				if (node.getChildCount() != 2) {
+					throw new IllegalArgumentException("Only binary trees can be handled, but node " + nr + " has " + node.getChildCount() + " children");
+				}
+				children[2 * (nr - leafCount)] = node.getLeft().getNr();
+				children[2 * (nr - leafCount) + 1] = node.getRight().getNr();
+			}
+		}
+		rankedChildren = rank();
+	}
+
+	/** @return children of internal nodes in order of rank, internal nodes ordered by height,
+	 * ties broken by number of leaves below, so parents always rank above their children **/
+	private int [] rank() {
+		int [] clusterSize = new int[getNodeCount()];
+		clusterSize(root, clusterSize);
+		Integer [] order = new Integer[leafCount - 1];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = leafCount + i;
+		}
+		Arrays.sort(order, (a, b) -> {
+			int c = Double.compare(heights[a], heights[b]);
+			return c != 0 ? c : Integer.compare(clusterSize[a], clusterSize[b]);
+		});
+		int [] encoding = new int[getNodeCount()];
+		for (int i = 0; i < leafCount; i++) {
+			encoding[i] = i;
+		}
+		for (int r = 1; r < leafCount; r++) {
+			encoding[order[r - 1]] = leafCount + r - 1;
+		}
+		int [] ranked = new int[children.length];
+		for (int r = 1; r < leafCount; r++) {
+			int node = order[r - 1];
+			ranked[2 * (r - 1)] = encoding[getLeft(node)];
+			ranked[2 * (r - 1) + 1] = encoding[getRight(node)];
+		}
+		return ranked;
+	}
+
+	private int clusterSize(int node, int [] clusterSize) {
+		if (isLeaf(node)) {
+			clusterSize[node] = 1;
+		} else {
+			clusterSize[node] = clusterSize(getLeft(node), clusterSize) + clusterSize(getRight(node), clusterSize);
+		}
+		return clusterSize[node];
+	}
+
+	public int getLeafCount() {
+		return leafCount;
+	}
+
+	public int getNodeCount() {
+		return 2 * leafCount - 1;
+	}
+
+	public int getRoot() {
+		return root;
+	}
+
+	public boolean isLeaf(int node) {
+		return node < leafCount;
+	}
+
+	public int getLeft(int node) {
+		return children[2 * (node - leafCount)];
+	}
+
+	public int getRight(int node) {
+		return children[2 * (node - leafCount) + 1];
+	}
+
+	public double getHeight(int node) {
+		return heights[node];
+	}
+
+	public String [] getTaxa() {
+		return taxa;
+	}
+
+	/** @return children of internal nodes in order of rank, not to be modified **/
+	int [] getRankedChildren() {
+		return rankedChildren;
+	}
+
+	/** @return sorted hashes of clades of internal nodes other than the root, not to be modified **/
+	long [] getCladeHashes() {
+		long [] hashes = cladeHashes;
+		if (hashes == null) {
+			hashes = calcCladeHashes();
+			cladeHashes = hashes;
+		}
+		return hashes;
+	}
+
+	/** @return the (at most) sketchSize smallest clade hashes in sorted order, not to be modified.
+	 * Only the sketch is kept, so memory does not grow with the number of taxa. **/
+	long [] getCladeSketch(int sketchSize) {
+		long [] sketch = findCladeSketch(cladeSketches, sketchSize);
+		if (sketch != null) {
+			return sketch;
+		}
+		long [] hashes = cladeHashes != null ? cladeHashes : calcCladeHashes();
+		sketch = Arrays.copyOf(hashes, Math.min(sketchSize, hashes.length));
+		synchronized (this) {
+			long [][] sketches = cladeSketches;
+			long [] other = findCladeSketch(sketches, sketchSize);
+			if (other != null) {
+				return other;
+			}
+			sketches = sketches == null ? new long[1][] : Arrays.copyOf(sketches, sketches.length + 1);
+			sketches[sketches.length - 1] = sketch;
+			cladeSketches = sketches;
+		}
+		return sketch;
+	}
+
+	/** @return sketch among sketches for sketchSize, or null if there is none **/
+	private long [] findCladeSketch(long [][] sketches, int sketchSize) {
+		if (sketches != null) {
+			int length = Math.min(sketchSize, Math.max(leafCount - 2, 0));
+			for (long [] sketch : sketches) {
+				if (sketch.length == length) {
+					return sketch;
+				}
+			}
+		}
+		return null;
+	}
+
+	private long [] calcCladeHashes() {
+		int [] bit = getLeafBits();
+		// bitsets of clades in order of rank, so children come before their parents
+		int words = (leafCount + 63) / 64;
+		long [] bitsets = new long[(leafCount - 1) * words];
+		long [] hashes = new long[Math.max(leafCount - 2, 0)];
+		for (int r = 1; r < leafCount; r++) {
+			int offset = (r - 1) * words;
+			for (int k = 0; k < 2; k++) {
+				int child = rankedChildren[2 * (r - 1) + k];
+				if (child < leafCount) {
+					int b = bit == null ? child : bit[child];
+					bitsets[offset + b / 64] |= 1L << (b % 64);
+				} else {
+					int childOffset = (child - leafCount) * words;
+					for (int w = 0; w < words; w++) {
+						bitsets[offset + w] |= bitsets[childOffset + w];
+					}
+				}
+			}
+			if (r < leafCount - 1) {
+				long hash = words;
+				for (int w = 0; w < words; w++) {
+					hash = (hash ^ bitsets[offset + w]) * 0x9E3779B97F4A7C15L;
+					hash ^= hash >>> 32;
+				}
+				hashes[r - 1] = mix(hash);
+			}
+		}
+		Arrays.sort(hashes);
+		return hashes;
+	}
+
+	/** @return for every leaf the position of its taxon in sorted order, the same for any order of the taxa,
+	 * or null if taxa are unknown, in which case leaf numbers should be used **/
+	int [] getLeafBits() {
+		return taxa == null ? null : leafBits.computeIfAbsent(taxa, CompactTree::leafBits);
+	}
+
+	/** @return position of every taxon in sorted order **/
+	private static int [] leafBits(String [] taxa) {
+		String [] sorted = taxa.clone();
+		Arrays.sort(sorted);
+		int [] bit = new int[taxa.length];
+		for (int i = 0; i < taxa.length; i++) {
+			bit[i] = Arrays.binarySearch(sorted, taxa[i]);
+		}
+		return bit;
+	}
+
+	/** finaliser of MurmurHash3 **/
+	static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	/** @return hash of the ranked topology, the same for any order of the taxa and of the children of a node;
+	 * different seeds give independent hashes **/
+	long topologyHash(long seed) {
+		int [] bit = getLeafBits();
+		long hash = mix(seed ^ leafCount);
+		for (int i = 0; i < rankedChildren.length; i += 2) {
+			int left = rankedChildren[i], right = rankedChildren[i + 1];
+			if (bit != null) {
+				left = left < leafCount ? bit[left] : left;
+				right = right < leafCount ? bit[right] : right;
+			}
+			long pair = ((long) Math.min(left, right) << 32) | Math.max(left, right);
+			hash = mix(hash ^ pair) + seed;
+		}
+		return mix(hash);
+	}
+
+	/** @return hash of topology and node heights, for recognising the same tree later on **/
+	public long fingerprint() {
+		long hash = root;
+		for (int child : children) {
+			hash = hash * 0x9E3779B97F4A7C15L + child;
+		}
+		for (double height : heights) {
+			hash = hash * 0x9E3779B97F4A7C15L + Double.doubleToLongBits(height);
+		}
+		return hash ^ (hash >>> 31);
+	}
+
+	/** @return tree with the same topology, node numbers, heights and leaf IDs -- meta data is not retained **/
+	public Tree toTree() {
+		Node [] nodes = new Node[getNodeCount()];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = new Node();
+			nodes[i].setNr(i);
+			nodes[i].setHeight(heights[i]);
+			if (i < leafCount && taxa != null) {
+				nodes[i].setID(taxa[i]);
+			}
+		}
+		for (int i = leafCount; i < nodes.length; i++) {
+			nodes[i].addChild(nodes[getLeft(i)]);
+			nodes[i].addChild(nodes[getRight(i)]);
+		}
+		return new Tree(nodes[root]);
+	}
+}
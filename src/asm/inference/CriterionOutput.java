@@ -0,0 +1,29 @@
+package asm.inference;
+
+import java.io.PrintStream;
+
+import beast.base.core.Log;
+
+/**
+ * Screen output of stopping criteria. While criteria are evaluated concurrently,
+ * AutoStopMCMC gives every task its own buffer, so that output of different criteria
+ * is not interleaved. Otherwise, output goes to Log.info.
+ */
+public class CriterionOutput {
+	private final static ThreadLocal<PrintStream> buffer = new ThreadLocal<>();
+
+	/** @return stream for screen output of criteria evaluated by the current thread **/
+	public static PrintStream info() {
+		PrintStream out = buffer.get();
+		return out != null ? out : Log.info;
+	}
+
+	/** send output of the current thread to out, or to Log.info if out is null **/
+	static void redirect(PrintStream out) {
+		if (out == null) {
+			buffer.remove();
+		} else {
+			buffer.set(out);
+		}
+	}
+}
@@ -1,113 +1,475 @@
 package asm.inference;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import beast.base.core.Log;
 
+/**
+ * Cache of distances between trees of two chains, for trees on the thinning grid
+ * (tree indices that are multiples of delta) only.
+ *
+ * Trees are assigned slots in a ring buffer, tree index i going to slot (i/delta) % capacity,
+ * so memory is bounded by the capacity, however long the chains run. When a slot is
+ * taken by a later tree, distances of the tree that used to occupy it are evicted. Since
+ * criteria only look at trees from the burn-in up to the last tree, with end/delta
+ * kept below the cache limit by increasing delta, trees that fell behind the window
+ * are the ones being replaced. When delta increases, trees that are off the new grid
+ * are evicted, and the remaining ones moved to their new slots.
+ *
+ * Distances are non-negative integers, stored as distance+1 so 0 is the sentinel for
+ * "not in the cache", using 1, 2 or 4 bytes per entry depending on the largest possible
+ * distance (see setMaxDistance()). The encoding is widened when a larger distance arrives.
+ * The matrices are kept in a DistanceStore, on or off the Java heap, indexed by long.
+ * They are laid out in square tiles of TILE x TILE entries, so entries for nearby
+ * trees are stored close together.
+ *
+ * The cache can be read and filled by many threads without locking. Every slot has a
+ * state consisting of a generation, which is odd while the slot is being handed to another
+ * tree, and the number of threads writing distances of the tree in the slot. Since a
+ * distance is the same whichever thread calculates it, writers do not need to exclude
+ * each other. Readers check that the generations of both slots did not change while
+ * reading an entry, like a sequence lock, and treat the entry as missing otherwise.
+ * Handing a slot to another tree waits for the writers of the slot to finish before
+ * clearing its entries. Likewise, replacing the grid marks all slots of the old grid as
+ * being handed over and waits for its writers, before copying its entries and closing its store.
+ * Slots are only handed over, and the grid only changed, under the monitor of the cache,
+ * which happens about once per tree.
+ * A distance written by one thread may not be visible to another thread straight away,
+ * in which case that thread recalculates the same distance and writes the same value.
+ *
+ * The cache can be written to and read back from a checkpoint file, so a resumed run does not
+ * have to calculate all distances again. Since a resumed chain may log different trees from
+ * the last saved state onwards, every tree in the checkpoint is stored with a fingerprint, and
+ * its distances are dropped if the tree logged with the same index after resuming is different.
+ *
+ * Besides distances per pair of trees, distances per pair of topologies (see CompactTree.topologyId)
+ * are kept for topologies that occur more than once, so distances to trees that repeat a topology
+ * are looked up instead of calculated. This memo is emptied when it reaches MAX_TOPOLOGY_PAIRS.
+ */
 public class DistanceMatrixCache {
-	// symmetric 2d distance matrix for trees 1
-	private float [] cache11;
-	// symmetric 2d distance matrix for trees 2
-	private float [] cache22;
-	// asymmetric 2d distance matrix between trees 1 and trees 2
-	// represented by lower triangle and upper triangle half-matrices
-	private float [] cache12, cache21, diagonal;
-	// matrix size
-	private int size;
-	
-	public DistanceMatrixCache(int n) {
-		cache11 = new float[n*(n-1)/2];
-		cache22 = new float[n*(n-1)/2];
-		cache12 = new float[n*(n-1)/2];
-		cache21 = new float[n*(n-1)/2];
-		diagonal = new float[n];
-	}
-	
-	float getDistance(int treeSet1, int index1, int treeSet2, int index2) {
-		if (index1 >= size || index2 >= size) {
-			// resize
-			Log.warning("Resizing cache from " + size + " to " + (size+1024));
-			size += 1024;
-			cache11 = Arrays.copyOf(cache11, size*(size-1)/2);
-			cache22 = Arrays.copyOf(cache22, size*(size-1)/2);
-			cache12 = Arrays.copyOf(cache12, size*(size-1)/2);
-			cache21 = Arrays.copyOf(cache21, size*(size-1)/2);
-			diagonal = Arrays.copyOf(diagonal, size);
-		}
-		
-		if (treeSet1 == 0) {
-			if (treeSet2 == 0) {
-				int i = index1 > index2 ?  
-					index1 * (index1 - 1)/2 + index2:
-					index2 * (index2 - 1)/2 + index1;
-				return cache11[i];
-			} else {
-				if (index1 > index2) {  
-					int i = index1 * (index1 - 1)/2 + index2;
-					return cache12[i];
-				} else if (index1 < index2) {  
-					int i = index2 * (index2 - 1)/2 + index1;
-					return cache21[i];
-				} else {
-					return diagonal[index1];
+	final static int TILE = 64;
+
+	private final static long GENERATION = 1L << 32;
+	private final static long WRITERS = GENERATION - 1;
+
+	/** slots and matrices for a given capacity, delta and width, replaced as a whole when any of these change **/
+	private static class Grid {
+		// number of slots for each chain
+		final int capacity;
+		// gap between indices of cached trees
+		final int delta;
+		// tree index occupying each slot for each of the two chains, or -1 if empty;
+		// atomic, since writers check it without holding the monitor
+		final AtomicIntegerArray [] slotIndex;
+		// generation (upper 32 bits) and number of writers (lower 32 bits) for each slot of both chains
+		final AtomicLongArray [] slotState;
+		// symmetric distance matrices within each chain, lower triangle over slots,
+		// followed by distances between trees of chain 0 (row) and chain 1 (column) over slots
+		final DistanceStore store;
+		// offsets of matrices in store
+		final long [] within;
+		final long between;
+		// largest distance that can be stored
+		final long maxDistance;
+
+		Grid(int capacity, int delta, int width, DistanceStorage storage) {
+			this.capacity = capacity;
+			this.delta = delta;
+			slotIndex = new AtomicIntegerArray[] {new AtomicIntegerArray(capacity), new AtomicIntegerArray(capacity)};
+			for (int slot = 0; slot < capacity; slot++) {
+				slotIndex[0].set(slot, -1);
+				slotIndex[1].set(slot, -1);
+			}
+			slotState = new AtomicLongArray[] {new AtomicLongArray(capacity), new AtomicLongArray(capacity)};
+			long tiles = (capacity + TILE - 1) / TILE;
+			long triangleSize = tiles * (tiles + 1) / 2 * TILE * TILE;
+			within = new long[] {0, triangleSize};
+			between = 2 * triangleSize;
+			store = storage.newStore(between + tiles * tiles * TILE * TILE, width);
+			maxDistance = store.maxValue() - 1;
+		}
+
+		boolean onGrid(int index) {
+			return index >= 0 && index % delta == 0;
+		}
+
+		int slot(int index) {
+			return (index / delta) % capacity;
+		}
+
+		/** @return index into store of distance between two trees in different slots **/
+		long offset(int treeSet1, int slot1, int treeSet2, int slot2) {
+			if (treeSet1 == treeSet2) {
+				return within[treeSet1] + triangle(slot1, slot2);
+			}
+			return between + (treeSet1 == 0 ? square(slot1, slot2) : square(slot2, slot1));
+		}
+
+		/** @return index of entry (slot1, slot2) in tiled lower triangle **/
+		long triangle(int slot1, int slot2) {
+			int row = Math.max(slot1, slot2), col = Math.min(slot1, slot2);
+			long tileRow = row / TILE, tileCol = col / TILE;
+			long tile = tileRow * (tileRow + 1) / 2 + tileCol;
+			return tile * TILE * TILE + (row % TILE) * TILE + col % TILE;
+		}
+
+		/** @return index of entry (row, col) in tiled square matrix **/
+		long square(int row, int col) {
+			long tiles = (capacity + TILE - 1) / TILE;
+			long tile = (row / TILE) * tiles + col / TILE;
+			return tile * TILE * TILE + (row % TILE) * TILE + col % TILE;
+		}
+	}
+
+	private final DistanceStorage storage;
+	private volatile Grid grid;
+
+	// delta requested by the criteria using the cache, the grid follows the smallest
+	private Map<Object, Integer> requestedDelta = new HashMap<>();
+
+	final static int MAX_TOPOLOGY_PAIRS = 1 << 16;
+	// distances by pair of topology ids
+	private Map<Long, Integer> topologyDistances = new ConcurrentHashMap<>();
+
+	// fingerprints of trees read from a checkpoint that have not been logged again yet, keyed by chain and tree index
+	private Map<Long, Long> unverified = new ConcurrentHashMap<>();
+
+	public DistanceMatrixCache(int capacity) {
+		this(capacity, DistanceStorage.Heap);
+	}
+
+	public DistanceMatrixCache(int capacity, DistanceStorage storage) {
+		this.storage = storage;
+		grid = new Grid(capacity, 1, 1, storage);
+	}
+
+	/** @return distance between two trees, or -1 if not in the cache **/
+	public int getDistance(int treeSet1, int index1, int treeSet2, int index2) {
+		Grid g = grid;
+		if (!g.onGrid(index1) || !g.onGrid(index2)) {
+			return -1;
+		}
+		int slot1 = g.slot(index1);
+		int slot2 = g.slot(index2);
+		if (treeSet1 == treeSet2 && slot1 == slot2) {
+			return -1;
+		}
+		long state1 = g.slotState[treeSet1].get(slot1);
+		long state2 = g.slotState[treeSet2].get(slot2);
+		if (handingOver(state1) || handingOver(state2) ||
+				g.slotIndex[treeSet1].get(slot1) != index1 || g.slotIndex[treeSet2].get(slot2) != index2) {
+			return -1;
+		}
+		int d = g.store.get(g.offset(treeSet1, slot1, treeSet2, slot2));
+		// make sure the entry is read before the generations are checked again
+		VarHandle.acquireFence();
+		if (generation(g.slotState[treeSet1].get(slot1)) != generation(state1) ||
+				generation(g.slotState[treeSet2].get(slot2)) != generation(state2)) {
+			return -1;
+		}
+		return d - 1;
+	}
+
+	/** @return distance between trees with topology ids id1 and id2, or -1 if not known **/
+	int getTopologyDistance(int id1, int id2) {
+		if (id1 == id2) {
+			return 0;
+		}
+		Integer d = topologyDistances.get(topologyKey(id1, id2));
+		return d == null ? -1 : d;
+	}
+
+	/** remember distance between trees with topology ids id1 and id2 **/
+	void setTopologyDistance(int id1, int id2, int distance) {
+		if (topologyDistances.size() >= MAX_TOPOLOGY_PAIRS) {
+			topologyDistances.clear();
+		}
+		topologyDistances.put(topologyKey(id1, id2), distance);
+	}
+
+	private static long topologyKey(int id1, int id2) {
+		return ((long) Math.min(id1, id2) << 32) | Math.max(id1, id2);
+	}
+
+	/** store distance between two trees, which is ignored for trees off the grid or behind the window **/
+	public void setDistance(int treeSet1, int index1, int treeSet2, int index2, int distance) {
+		if (distance > grid.maxDistance) {
+			setMaxDistance(distance);
+		}
+		Grid g = grid;
+		if (!g.onGrid(index1) || !g.onGrid(index2)) {
+			return;
+		}
+		int slot1 = g.slot(index1);
+		int slot2 = g.slot(index2);
+		if (treeSet1 == treeSet2 && slot1 == slot2) {
+			return;
+		}
+		if (!claim(g, treeSet1, index1) || !claim(g, treeSet2, index2)) {
+			return;
+		}
+		if (!enter(g, treeSet1, slot1, index1)) {
+			return;
+		}
+		try {
+			if (!enter(g, treeSet2, slot2, index2)) {
+				return;
+			}
+			try {
+				g.store.set(g.offset(treeSet1, slot1, treeSet2, slot2), distance + 1);
+			} finally {
+				g.slotState[treeSet2].getAndDecrement(slot2);
+			}
+		} finally {
+			g.slotState[treeSet1].getAndDecrement(slot1);
+		}
+	}
+
+	/**
+	 * Make sure distances up to maxDistance can be stored, which determines the number
+	 * of bytes used per entry. Calling this before distances are added prevents having
+	 * to convert the cache to a wider encoding later on.
+	 */
+	public void setMaxDistance(long maxDistance) {
+		if (maxDistance <= grid.maxDistance) {
+			return;
+		}
+		synchronized (this) {
+			Grid g = grid;
+			if (maxDistance > g.maxDistance) {
+				regrid(g.delta, g.capacity, DistanceStorage.width(maxDistance + 1));
+			}
+		}
+	}
+
+	/**
+	 * Set the gap between cached trees requested by a criterion. The cache keeps
+	 * trees on the grid of the smallest delta requested over all criteria.
+	 * @param client criterion using the cache
+	 * @param delta gap between trees, a multiple of the previous delta
+	 * @param capacity number of trees the criterion needs cached for each chain
+	 */
+	public synchronized void setDelta(Object client, int delta, int capacity) {
+		requestedDelta.put(client, delta);
+		int newDelta = Integer.MAX_VALUE;
+		for (int d : requestedDelta.values()) {
+			newDelta = Math.min(newDelta, d);
+		}
+		Grid g = grid;
+		if (newDelta != g.delta || capacity > g.capacity) {
+			regrid(newDelta, Math.max(capacity, g.capacity), DistanceStorage.width(g.maxDistance + 1));
+		}
+	}
+
+	private static long generation(long state) {
+		return state >>> 32;
+	}
+
+	private static boolean handingOver(long state) {
+		return (generation(state) & 1) == 1;
+	}
+
+	/** register as writer of slot, provided it is occupied by tree index and not being handed over **/
+	private boolean enter(Grid g, int treeSet, int slot, int index) {
+		AtomicLongArray state = g.slotState[treeSet];
+		while (true) {
+			long s = state.get(slot);
+			if (handingOver(s) || g.slotIndex[treeSet].get(slot) != index) {
+				return false;
+			}
+			if (state.compareAndSet(slot, s, s + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/** make sure tree index occupies its slot, evicting the tree occupying it if it has a lower index.
+	 * @return false if the slot is taken by a later tree, or the grid changed **/
+	private boolean claim(Grid g, int treeSet, int index) {
+		int slot = g.slot(index);
+		if (g.slotIndex[treeSet].get(slot) == index && !handingOver(g.slotState[treeSet].get(slot))) {
+			return true;
+		}
+		synchronized (this) {
+			if (g != grid) {
+				return false;
+			}
+			int occupant = g.slotIndex[treeSet].get(slot);
+			if (occupant == index) {
+				return true;
+			}
+			if (occupant > index) {
+				return false;
+			}
+			evict(g, treeSet, slot);
+			g.slotIndex[treeSet].set(slot, index);
+			// new generation, which publishes the cleared entries and new occupant
+			g.slotState[treeSet].addAndGet(slot, GENERATION);
+			return true;
+		}
+	}
+
+	/** clear entries of slot after waiting for its writers, leaving the generation odd **/
+	private void evict(Grid g, int treeSet, int slot) {
+		AtomicLongArray state = g.slotState[treeSet];
+		long s = state.addAndGet(slot, GENERATION);
+		while ((s & WRITERS) != 0) {
+			Thread.onSpinWait();
+			s = state.get(slot);
+		}
+		for (int other = 0; other < g.capacity; other++) {
+			if (other != slot) {
+				g.store.set(g.within[treeSet] + g.triangle(slot, other), 0);
+			}
+			g.store.set(g.between + (treeSet == 0 ? g.square(slot, other) : g.square(other, slot)), 0);
+		}
+	}
+
+	/**
+	 * Write slots, tree fingerprints and distances to out, which can be read back by read().
+	 * @param trees trees of both chains, for calculating fingerprints of the trees in the cache
+	 */
+	synchronized void write(DataOutputStream out, List<CompactTree> [] trees) throws IOException {
+		Grid g = grid;
+		out.writeInt(g.capacity);
+		out.writeInt(g.delta);
+		out.writeInt(DistanceStorage.width(g.maxDistance + 1));
+		for (int treeSet = 0; treeSet < 2; treeSet++) {
+			for (int slot = 0; slot < g.capacity; slot++) {
+				int index = g.slotIndex[treeSet].get(slot);
+				out.writeInt(index);
+				CompactTree tree = index >= 0 && index < trees[treeSet].size() ? trees[treeSet].get(index) : null;
+				out.writeLong(tree != null ? tree.fingerprint() : 0);
+			}
+		}
+		g.store.write(out);
+	}
+
+	/** replace content by that written by write(), and read from in **/
+	synchronized void read(ByteBuffer in) {
+		int capacity = in.getInt();
+		int delta = in.getInt();
+		int width = in.getInt();
+		Grid g = new Grid(capacity, delta, width, storage);
+		unverified.clear();
+		for (int treeSet = 0; treeSet < 2; treeSet++) {
+			for (int slot = 0; slot < capacity; slot++) {
+				int index = in.getInt();
+				long fingerprint = in.getLong();
+				g.slotIndex[treeSet].set(slot, index);
+				if (index >= 0) {
+					unverified.put(key(treeSet, index), fingerprint);
+				}
+			}
+		}
+		g.store.read(in);
+		Grid old = grid;
+		freeze(old);
+		grid = g;
+		old.store.close();
+	}
+
+	/** called when a tree is logged, to drop distances from a checkpoint for a tree with the same index that differs **/
+	void verify(int treeSet, int index, CompactTree tree) {
+		if (unverified.isEmpty()) {
+			return;
+		}
+		Long fingerprint = unverified.remove(key(treeSet, index));
+		if (fingerprint != null && (fingerprint == 0 || fingerprint != tree.fingerprint())) {
+			synchronized (this) {
+				Grid g = grid;
+				if (g.onGrid(index) && g.slotIndex[treeSet].get(g.slot(index)) == index) {
+					int slot = g.slot(index);
+					evict(g, treeSet, slot);
+					g.slotIndex[treeSet].set(slot, -1);
+					g.slotState[treeSet].addAndGet(slot, GENERATION);
+				}
+			}
+		}
+	}
+
+	private static long key(int treeSet, int index) {
+		return ((long) treeSet << 32) | index;
+	}
+
+	/** move trees on the grid of newDelta to a new grid, and drop the others **/
+	private void regrid(int newDelta, int newCapacity, int newWidth) {
+		Log.warning("Resizing distance cache to " + newCapacity + " trees per chain, " + newDelta + " samples apart, "
+				+ newWidth + " bytes per distance");
+		Grid old = grid;
+		Grid g = new Grid(newCapacity, newDelta, newWidth, storage);
+		// stop writers of the old grid first, so all distances written to it are copied,
+		// and its store is not written to any more when it is closed
+		freeze(old);
+
+		// assign slots, later trees first so these are retained when slots collide
+		for (int treeSet = 0; treeSet < 2; treeSet++) {
+			int [] indices = new int[old.capacity];
+			for (int slot = 0; slot < old.capacity; slot++) {
+				indices[slot] = old.slotIndex[treeSet].get(slot);
+			}
+			Arrays.sort(indices);
+			for (int i = indices.length - 1; i >= 0 && indices[i] >= 0; i--) {
+				int slot = g.slot(indices[i]);
+				if (g.onGrid(indices[i]) && g.slotIndex[treeSet].get(slot) < 0) {
+					g.slotIndex[treeSet].set(slot, indices[i]);
 				}
 			}
-		} else {
-			if (treeSet2 == 0) {
-				if (index1 > index2) {  
-					int i = index1 * (index1 - 1)/2 + index2;
-					return cache21[i];
-				} else if (index1 < index2) {
-					int i = index2 * (index2 - 1)/2 + index1;
-					return cache12[i];
-				} else {
-					return diagonal[index1];
+		}
+
+		// copy distances between retained trees
+		for (int treeSet1 = 0; treeSet1 < 2; treeSet1++) {
+			for (int oldSlot1 = 0; oldSlot1 < old.capacity; oldSlot1++) {
+				int index1 = old.slotIndex[treeSet1].get(oldSlot1);
+				if (!g.onGrid(index1) || g.slotIndex[treeSet1].get(g.slot(index1)) != index1) {
+					continue;
 				}
-			} else {
-				int i = index1 > index2 ?  
-						index1 * (index1 - 1)/2 + index2:
-						index2 * (index2 - 1)/2 + index1;
-				return cache22[i];
-			}
-		}			
-	}
-
-	void setDistance(int treeSet1, int index1, int treeSet2, int index2, float d) {
-		if (treeSet1 == 0) {
-			if (treeSet2 == 0) {
-				int i = index1 > index2 ?  
-					index1 * (index1 - 1)/2 + index2:
-					index2 * (index2 - 1)/2 + index1;
-				cache11[i] = d;
-			} else {
-				if (index1 > index2) {  
-					int i = index1 * (index1 - 1)/2 + index2;
-					cache12[i] = d;
-				} else if (index1 < index2) {
-					int i = index2 * (index2 - 1)/2 + index1;
-					cache21[i] = d;
-				} else {
-					diagonal[index1] = d;
+				for (int treeSet2 = treeSet1; treeSet2 < 2; treeSet2++) {
+					for (int oldSlot2 = 0; oldSlot2 < old.capacity; oldSlot2++) {
+						int index2 = old.slotIndex[treeSet2].get(oldSlot2);
+						if (!g.onGrid(index2) || g.slotIndex[treeSet2].get(g.slot(index2)) != index2 ||
+								(treeSet1 == treeSet2 && oldSlot1 == oldSlot2)) {
+							continue;
+						}
+						int d = old.store.get(old.offset(treeSet1, oldSlot1, treeSet2, oldSlot2));
+						if (d != 0) {
+							g.store.set(g.offset(treeSet1, g.slot(index1), treeSet2, g.slot(index2)), d);
+						}
+					}
 				}
 			}
-		} else {
-			if (treeSet2 == 0) {
-				if (index1 > index2) {  
-					int i = index1 * (index1 - 1)/2 + index2;
-					cache21[i] = d;
-				} else if (index1 < index2) {
-					int i = index2 * (index2 - 1)/2 + index1;
-					cache12[i] = d;
-				} else {
-					diagonal[index1] = d;
+		}
+		grid = g;
+		// readers that passed the generation check before the freeze may still read the old store,
+		// which is harmless: closing a store does not free or unmap its buffers, and readers
+		// discard what they read since the generation changed
+		old.store.close();
+	}
+
+	/** mark all slots of a grid that is about to be replaced as being handed over, so that writers back off
+	 * and readers treat its entries as missing, then wait for writers that are still busy. Called under the
+	 * monitor, so no slot is being handed over already. **/
+	private void freeze(Grid g) {
+		for (int treeSet = 0; treeSet < 2; treeSet++) {
+			AtomicLongArray state = g.slotState[treeSet];
+			for (int slot = 0; slot < g.capacity; slot++) {
+				state.addAndGet(slot, GENERATION);
+			}
+			for (int slot = 0; slot < g.capacity; slot++) {
+				while ((state.get(slot) & WRITERS) != 0) {
+					Thread.onSpinWait();
 				}
-			} else {
-				int i = index1 > index2 ?  
-						index1 * (index1 - 1)/2 + index2:
-						index2 * (index2 - 1)/2 + index1;
-				cache22[i] = d;
 			}
-		}			
-		
+		}
 	}
-}
\ No newline at end of file
+}
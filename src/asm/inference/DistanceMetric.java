@@ -0,0 +1,29 @@
+package asm.inference;
+
+/** tree distances available to TreeESS and TreePSRF **/
+public enum DistanceMetric {
+	/** rank NNI distance between ranked trees, sensitive to the order of node heights: O(n^2) per pair **/
+	RNNI,
+	/** Robinson-Foulds distance, number of clades in only one of the trees: O(n) per pair **/
+	RF,
+	/** Robinson-Foulds distance estimated from bottom-k sketches of the clades of each tree: O(k) per pair **/
+	SketchRF;
+
+	/** @return new metric, where sketchSize is the number of clades per tree used by SketchRF **/
+	public TreeMetric newMetric(int sketchSize) {
+		switch (this) {
+		case RF:
+			return new RFDistance();
+		case SketchRF:
+			return new SketchRFDistance(sketchSize);
+		default:
+			return new RNNIDistance();
+		}
+	}
+
+	/** @return name of the distances given by newMetric(sketchSize), the same for metrics giving the same distances,
+	 * so criteria only share a distance cache when they agree on the distances **/
+	public String distanceKey(int sketchSize) {
+		return this == SketchRF ? name() + sketchSize : name();
+	}
+}
@@ -0,0 +1,61 @@
+package asm.inference;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Calculates tree distances in the background as soon as trees are logged, so that
+ * the distances needed by TreeESS and TreePSRF are mostly in the cache when checking.
+ * For every new tree on the delta grid, distances to the trees on the grid in the
+ * smoothing window of all chains are calculated, as these are the ones the checks need.
+ */
+public class DistancePrecomputer implements TraceInfo.TreeListener {
+	private final TreeESS criterion;
+	private final TraceInfo traceInfo;
+	private final ExecutorService executor;
+	/** highest tree index added so far, used to skip queued trees that fell out of the window **/
+	private volatile int latest = -1;
+
+	public DistancePrecomputer(TreeESS criterion, TraceInfo traceInfo, int threads) {
+		this.criterion = criterion;
+		this.traceInfo = traceInfo;
+		executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "ASM-distances");
+			thread.setDaemon(true);
+			// the chains should not be slowed down
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		});
+	}
+
+	@Override
+	public void treeAdded(int chainNr, int index) {
+		if (index > latest) {
+			latest = index;
+		}
+		if (index % criterion.delta == 0) {
+			executor.execute(() -> precompute(chainNr, index));
+		}
+	}
+
+	/** stop background threads, abandoning queued trees **/
+	void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private void precompute(int chainNr, int index) {
+		int delta = criterion.delta;
+		if (index % delta != 0 || index < criterion.windowStart(latest)) {
+			// thinned out or outside the window by now
+			return;
+		}
+		int start = criterion.windowStart(index);
+		for (int chain = 0; chain < traceInfo.chainCount(); chain++) {
+			int end = Math.min(traceInfo.treeCount(chain), index + 1);
+			for (int i = start; i < end; i += delta) {
+				// trees released after delta changed are skipped
+				criterion.distance(chainNr, index, chain, i);
+			}
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package asm.inference;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/** where DistanceMatrixCache stores its matrices **/
+public enum DistanceStorage {
+	/** on the Java heap **/
+	Heap,
+	/** off-heap, in direct byte buffers **/
+	Direct,
+	/** in a temporary memory-mapped file, paged in and out by the operating system **/
+	Mapped;
+
+	/** @return new store for size entries of width bytes each **/
+	public DistanceStore newStore(long size, int width) {
+		switch (this) {
+		case Mapped:
+			try {
+				// deleted when the store is closed, or at exit if the store is still open
+				Path file = Files.createTempFile("asm-distances", ".bin");
+				file.toFile().deleteOnExit();
+				return new BufferDistanceStore(size, width, this, file);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		default:
+			return new BufferDistanceStore(size, width, this, null);
+		}
+	}
+
+	/** @return smallest width in bytes that can hold values up to maxValue **/
+	public static int width(long maxValue) {
+		if (maxValue <= 0xFF) {
+			return 1;
+		}
+		if (maxValue <= 0xFFFF) {
+			return 2;
+		}
+		return 4;
+	}
+}
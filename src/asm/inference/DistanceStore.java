@@ -0,0 +1,35 @@
+package asm.inference;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Storage for the distance matrices of DistanceMatrixCache, indexed by long, so that
+ * it can be larger than a Java array. Entries are unsigned integers of a fixed width
+ * (1, 2 or 4 bytes) and default to 0. Storage is allocated in segments when first
+ * written to, so large stores that are sparsely used cost little.
+ */
+public interface DistanceStore extends Closeable {
+
+	int get(long index);
+
+	void set(long index, int value);
+
+	/** @return number of entries **/
+	long size();
+
+	/** @return largest value that can be stored **/
+	long maxValue();
+
+	/** write content in a form that can be read back by read() into a store of the same size and width **/
+	void write(DataOutputStream out) throws IOException;
+
+	/** read content written by write(), advancing the position of in **/
+	void read(ByteBuffer in);
+
+	@Override
+	default void close() {
+	}
+}
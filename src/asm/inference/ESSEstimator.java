@@ -0,0 +1,38 @@
+package asm.inference;
+
+/**
+ * Estimates effective sample size of traces.
+ * Implementations may keep state between calls to speed up repeated estimates
+ * of a growing trace, so a separate instance should be used for every trace.
+ */
+public interface ESSEstimator {
+
+	/**
+	 * @param trace values of the trace
+	 * @param start first sample to include
+	 * @param end samples up to (but excluding) end are used
+	 * @return ESS of trace from start to end
+	 */
+	double calcESS(double [] trace, int start, int end);
+
+	/**
+	 * @param traces one column for every chain
+	 * @param burnin burn-in for every chain
+	 * @param end samples up to (but excluding) end are used
+	 * @return ESS of concatenated traces[i] from burnin[i] to end for all i
+	 */
+	default double calcESS(TraceColumn [] traces, int [] burnin, int end) {
+		int total = 0;
+		for (int i = 0; i < traces.length; i++) {
+			total += end - Math.min(burnin[i], end);
+		}
+		double [] trace = new double[total];
+		int k = 0;
+		for (int i = 0; i < traces.length; i++) {
+			int start = Math.min(burnin[i], end);
+			traces[i].copyTo(start, end, trace, k);
+			k += end - start;
+		}
+		return calcESS(trace, 0, total);
+	}
+}
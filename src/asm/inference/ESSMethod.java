@@ -0,0 +1,23 @@
+package asm.inference;
+
+/** methods available for estimating effective sample sizes **/
+public enum ESSMethod {
+	/** auto correlation summed over lags up to a maximum lag, as in Tracer, updated incrementally: O(n * maxLag) **/
+	Tracer,
+	/** auto correlation over all lags calculated with a fast Fourier transform: O(n log n) **/
+	FFT,
+	/** overlapping batch means: O(n) **/
+	BatchMeans;
+
+	/** @return new estimator, where maxLag is the maximum lag considered by the Tracer method **/
+	public ESSEstimator newEstimator(int maxLag) {
+		switch (this) {
+		case FFT:
+			return new FFTESS();
+		case BatchMeans:
+			return new BatchMeansESS();
+		default:
+			return new IncrementalESS(maxLag);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package asm.inference;
+
+/**
+ * ESS estimate based on the auto correlation function calculated for all lags at once
+ * with a fast Fourier transform, which takes O(n log n) for a trace of length n.
+ * The auto correlation is summed over pairs of consecutive lags till the sum of a
+ * pair becomes negative, as in Tracer, but without limit on the maximum lag.
+ */
+public class FFTESS implements ESSEstimator {
+
+	@Override
+	public double calcESS(double [] trace, int start, int end) {
+		int n = end - start;
+		if (n == 0) {
+			return Double.NaN;
+		}
+		double mean = 0;
+		for (int t = start; t < end; t++) {
+			mean += trace[t];
+		}
+		mean /= n;
+
+		// zero pad to at least twice the trace length to prevent wrapping around
+		int size = Integer.highestOneBit(Math.max(1, 2 * n - 1));
+		if (size < 2 * n - 1) {
+			size *= 2;
+		}
+		double [] re = new double[size];
+		double [] im = new double[size];
+		for (int t = start; t < end; t++) {
+			re[t - start] = trace[t] - mean;
+		}
+
+		// auto covariance is the inverse transform of the power spectrum
+		fft(re, im, false);
+		for (int i = 0; i < size; i++) {
+			re[i] = re[i] * re[i] + im[i] * im[i];
+			im[i] = 0;
+		}
+		fft(re, im, true);
+
+		// re[lag] * size = \sum_t (trace[t]-mean)*(trace[t+lag]-mean)
+		double [] autoCorrelation = re;
+		for (int lag = 0; lag < n; lag++) {
+			autoCorrelation[lag] /= (double) size * (n - lag);
+		}
+
+		double integralOfACFunctionTimes2 = autoCorrelation[0];
+		for (int lag = 2; lag < n; lag += 2) {
+			if (autoCorrelation[lag - 1] + autoCorrelation[lag] > 0) {
+				integralOfACFunctionTimes2 += 2.0 * (autoCorrelation[lag - 1] + autoCorrelation[lag]);
+			} else {
+				break;
+			}
+		}
+
+		// auto correlation time
+		double act = integralOfACFunctionTimes2 / autoCorrelation[0];
+		return n / act;
+	}
+
+	/**
+	 * in place radix 2 Cooley-Tukey transform, unscaled in both directions
+	 * @param re real parts, length must be a power of 2
+	 * @param im imaginary parts
+	 * @param inverse whether to do the inverse transform
+	 */
+	static void fft(double [] re, double [] im, boolean inverse) {
+		int n = re.length;
+		// bit reversal permutation
+		for (int i = 1, j = 0; i < n; i++) {
+			int bit = n >> 1;
+			for (; (j & bit) != 0; bit >>= 1) {
+				j ^= bit;
+			}
+			j ^= bit;
+			if (i < j) {
+				double tmp = re[i]; re[i] = re[j]; re[j] = tmp;
+				tmp = im[i]; im[i] = im[j]; im[j] = tmp;
+			}
+		}
+		for (int len = 2; len <= n; len <<= 1) {
+			double angle = 2 * Math.PI / len * (inverse ? 1 : -1);
+			double wRe = Math.cos(angle), wIm = Math.sin(angle);
+			for (int i = 0; i < n; i += len) {
+				double uRe = 1, uIm = 0;
+				for (int j = 0; j < len / 2; j++) {
+					int a = i + j, b = i + j + len / 2;
+					double vRe = re[b] * uRe - im[b] * uIm;
+					double vIm = re[b] * uIm + im[b] * uRe;
+					re[b] = re[a] - vRe;
+					im[b] = im[a] - vIm;
+					re[a] += vRe;
+					im[a] += vIm;
+					double tmp = uRe * wRe - uIm * wIm;
+					uIm = uRe * wIm + uIm * wRe;
+					uRe = tmp;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package asm.inference;
+
+/**
+ * Counts over positions 0,...,size-1 supporting updates, prefix sums and
+ * finding the position of the k-th smallest item, all in O(log size).
+ */
+public class FenwickTree {
+	private final int [] tree;
+	private int total;
+
+	public FenwickTree(int size) {
+		tree = new int[size + 1];
+	}
+
+	public int size() {
+		return tree.length - 1;
+	}
+
+	/** @return sum of all counts **/
+	public int total() {
+		return total;
+	}
+
+	/** add delta to count at position i **/
+	public void add(int i, int delta) {
+		total += delta;
+		for (i++; i < tree.length; i += i & -i) {
+			tree[i] += delta;
+		}
+	}
+
+	/** @return sum of counts at positions 0,...,i-1 **/
+	public int prefixSum(int i) {
+		int sum = 0;
+		for (; i > 0; i -= i & -i) {
+			sum += tree[i];
+		}
+		return sum;
+	}
+
+	/** @return smallest position p such that the sum of counts at positions 0,...,p exceeds k,
+	 * i.e. the position of item k (counting from 0) in sorted order **/
+	public int search(int k) {
+		int pos = 0;
+		for (int step = Integer.highestOneBit(tree.length - 1); step > 0; step >>= 1) {
+			if (pos + step < tree.length && tree[pos + step] <= k) {
+				pos += step;
+				k -= tree[pos];
+			}
+		}
+		return pos;
+	}
+}
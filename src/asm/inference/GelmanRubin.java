@@ -2,23 +2,23 @@ package asm.inference;
 
 
 
-import java.util.List;
-
 import beast.base.core.BEASTObject;
 import beast.base.core.Description;
 import beast.base.core.Input;
 
-@Description("Checks the Gelman Rubin statistic for all items in trace log and "
-		+ "between every pair of chains.")
+@Description("Checks the Gelman Rubin statistic for all items in trace log "
+		+ "over all chains.")
 public class GelmanRubin extends BEASTObject implements MCMCConvergenceCriterion {
 	public Input<Double> acceptedThresholdInput = new Input<>("threshold", "level at which the biggest GR value is still acceptable", 1.05);
 
     /** tables of logs, one for each thread + one for the total**/
-	List<Double>[][] m_logTables;
+	TraceColumn[][] m_logTables;
 	
-	/** pre-calculated sum of itmes and sum of itmes squared for all threads and all items */
-	double [][] m_fSums;
-	double [][] m_fSquaredSums;
+	/** number of samples of every chain included in m_fMeans and m_fSquaredDeviations **/
+	int m_nSamples = 0;
+	/** running mean and sum of squared deviations from the mean (Welford) for all threads and all items */
+	double [][] m_fMeans;
+	double [][] m_fSquaredDeviations;
 
 	int nChains;
 	double acceptedThreshold;
@@ -31,64 +31,75 @@ public class GelmanRubin extends BEASTObject implements MCMCConvergenceCriterion
 	@Override
 	public boolean converged(int[] burnin, int available) {
 //		int available = m_logTables[0][0].size();
-//		for (List<Double>[] d : m_logTables) {
+//		for (TraceColumn[] d : m_logTables) {
 //			available = Math.min(available, d[0].size());
 //		}
+		update(available);
 		
-		// check all items for all pairs
+		// check all items over all chains
 		int nItems = m_logTables[0].length;
-		for (int i = 0; i < nChains; i++) {
-			for (int j = i+1; j < nChains; j++) {
-				for (int k = 0; k < nItems; k++) {
-					double GRstat = calcGRStat(available, m_logTables[i][k], m_logTables[j][k]);
-					if (GRstat > acceptedThreshold) {
-						return false;
-					}
-				}
+		for (int k = 0; k < nItems; k++) {
+			double GRstat = calcGRStat(k);
+			if (GRstat > acceptedThreshold) {
+				return false;
 			}
 		}
 		return true;
 	}
 
-	
-	/** original Gelman Rubin statistic for 2 chains **/	
-	private double calcGRStat(int sampleCount, List<Double> trace1, List<Double> trace2) {
-		if (sampleCount > trace1.size() || sampleCount > trace2.size()) {
-			throw new IllegalArgumentException("Expected traces of sufficient length");
-		}
-		
-		// calc means and squared means
-		double mean1 = 0, mean2 = 0, sumsq1 = 0, sumsq2 = 0;
-		for (int i = 0; i < sampleCount; i++) {
-			Double d = trace1.get(i);
-			mean1 += d;
-			sumsq1 += d * d;
+	/** add samples up to sampleCount to the running means and sums of squared deviations **/
+	private void update(int sampleCount) {
+		int nItems = m_logTables[0].length;
+		if (m_fMeans == null || m_fMeans[0].length != nItems || sampleCount < m_nSamples) {
+			m_fMeans = new double[nChains][nItems];
+			m_fSquaredDeviations = new double[nChains][nItems];
+			m_nSamples = 0;
 		}
-		mean1 /= sampleCount;
-		for (int i = 0; i < sampleCount; i++) {
-			Double d = trace2.get(i);
-			mean2 += d;
-			sumsq2 += d * d;
+		for (int i = 0; i < nChains; i++) {
+			for (int k = 0; k < nItems; k++) {
+				TraceColumn trace = m_logTables[i][k];
+				if (sampleCount > trace.size()) {
+					throw new IllegalArgumentException("Expected traces of sufficient length");
+				}
+				double mean = m_fMeans[i][k];
+				double squaredDeviations = m_fSquaredDeviations[i][k];
+				for (int n = m_nSamples; n < sampleCount; n++) {
+					double d = trace.get(n);
+					double delta = d - mean;
+					mean += delta / (n + 1);
+					squaredDeviations += delta * (d - mean);
+				}
+				m_fMeans[i][k] = mean;
+				m_fSquaredDeviations[i][k] = squaredDeviations;
+			}
 		}
-		mean2 /= sampleCount;
+		m_nSamples = sampleCount;
+	}
+
+	/** Gelman Rubin statistic for item k over all chains, which for 2 chains is the original statistic **/	
+	private double calcGRStat(int k) {
+		int sampleCount = m_nSamples;
 
-		// calculate variances for both chains
-		double var1 = (sumsq1 - mean1 * mean1 * sampleCount)/(sampleCount - 1);
-		double var2 = (sumsq2 - mean2 * mean2 * sampleCount)/(sampleCount - 1);
-		
 		// average variance for this item
-		double fW = (var1 + var2) / 2;
+		double fW = 0;
+		double totalMean = 0;
+		for (int i = 0; i < nChains; i++) {
+			fW += m_fSquaredDeviations[i][k] / (sampleCount - 1);
+			totalMean += m_fMeans[i][k];
+		}
+		fW /= nChains;
 		if (fW == 0) {
 			return 1;
 		}
+		totalMean /= nChains;
 
-		// sum to get totals
-		double totalMean = (mean1 + mean2) / 2;
-		double totalSq = mean1*mean1 + mean2*mean2;
-		
-		// variance for joint
-		double fB = (totalSq - totalMean * totalMean * 2);
-		
+		// variance of chain means
+		double fB = 0;
+		for (int i = 0; i < nChains; i++) {
+			double d = m_fMeans[i][k] - totalMean;
+			fB += d * d;
+		}
+		fB /= (nChains - 1);
 		
 		double varR = ((sampleCount - 1.0)/sampleCount) + (fB/fW)*(1.0/sampleCount);
 		double R = Math.sqrt(varR);
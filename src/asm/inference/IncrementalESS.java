@@ -0,0 +1,207 @@
+package asm.inference;
+
+import java.util.Arrays;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * Effective sample size of a trace formed by concatenating the post-burn-in parts of
+ * the same column of a set of chains, as calculated by TraceESS, but maintained incrementally.
+ *
+ * Instead of recalculating the lagged products over all samples at every check, running sums of
+ * lagged products are kept for every chain. New samples are added to these sums, and samples that
+ * fall in the burn-in when the burn-in moves forward are subtracted. So, updating costs O(MAX_LAG)
+ * per new or retired sample, and calculating the ESS costs O(K^2) for the products spanning chain
+ * boundaries, where K is the lag at which the integral of the auto correlation function is cut off.
+ */
+public class IncrementalESS implements ESSEstimator {
+	/** recalculate sums from scratch once this many times the window size has been subtracted,
+	 * to prevent rounding errors from accumulating **/
+	final static int REBUILD_FACTOR = 8;
+
+	private final int maxLag;
+
+	/** for every chain, sums of trace[t]*trace[t-lag] for all lags over the window [start, end) **/
+	private double [][] laggedSums;
+	/** for every chain, sum of trace over the window **/
+	private double [] sums;
+	/** for every chain, window currently represented by laggedSums **/
+	private int [] start, end;
+	/** for every chain, number of samples subtracted since the last recalculation **/
+	private int [] removed;
+
+	/** traces and offsets into the concatenated trace at the last calcESS call **/
+	private TraceColumn [] traces;
+	private int [] offsets;
+	private double [] autoCorrelation;
+
+	public IncrementalESS(int maxLag) {
+		this.maxLag = maxLag;
+		autoCorrelation = new double[maxLag];
+	}
+
+	@Override
+	public double calcESS(TraceColumn [] traces, int [] burnin, int end) {
+		int nChains = traces.length;
+		if (laggedSums == null || laggedSums.length != nChains) {
+			laggedSums = new double[nChains][maxLag];
+			sums = new double[nChains];
+			start = new int[nChains];
+			this.end = new int[nChains];
+			removed = new int[nChains];
+			offsets = new int[nChains];
+		}
+		this.traces = traces;
+
+		int n = 0;
+		double total = 0;
+		for (int i = 0; i < nChains; i++) {
+			update(i, Math.min(burnin[i], end), end);
+			offsets[i] = n;
+			n += end - start[i];
+			total += sums[i];
+		}
+		if (n == 0) {
+			return Double.NaN;
+		}
+
+		final int size = n;
+		return calcESS(n, total, lag -> {
+			double squareLaggedSum = junction(lag, size);
+			for (int i = 0; i < nChains; i++) {
+				squareLaggedSum += laggedSums[i][lag];
+			}
+			return squareLaggedSum;
+		}, this::value);
+	}
+
+	/** direct (non-incremental) calculation for a single trace **/
+	@Override
+	public double calcESS(double [] trace, int start, int end) {
+		int n = end - start;
+		double total = 0;
+		double [] squareLaggedSums = new double[Math.min(n, maxLag)];
+		for (int t = start; t < end; t++) {
+			double x = trace[t];
+			total += x;
+			int maxLag = Math.min(squareLaggedSums.length, t - start + 1);
+			for (int lag = 0; lag < maxLag; lag++) {
+				squareLaggedSums[lag] += x * trace[t - lag];
+			}
+		}
+		if (n == 0) {
+			return Double.NaN;
+		}
+		return calcESS(n, total, lag -> squareLaggedSums[lag], pos -> trace[start + pos]);
+	}
+
+	/**
+	 * Same approximation of the auto correlation time as in Tracer
+	 * @param n length of trace
+	 * @param total sum of trace
+	 * @param squareLaggedSum returns sum of trace[t]*trace[t-lag] over the trace for a given lag
+	 * @param value returns trace value at a given position
+	 */
+	private double calcESS(int n, double total, IntToDoubleFunction squareLaggedSum, IntToDoubleFunction value) {
+		final double mean = total / n;
+		final int maxLag = Math.min(n, this.maxLag);
+		double headSum = 0, tailSum = 0;
+		double integralOfACFunctionTimes2 = 0.0;
+		for (int lagIndex = 0; lagIndex < maxLag; lagIndex++) {
+			// sum1 = \sum_{0 ... n-lag-1} trace, sum2 = \sum_{lag ... n-1} trace
+			double sum1 = total - tailSum;
+			double sum2 = total - headSum;
+			autoCorrelation[lagIndex] = squareLaggedSum.applyAsDouble(lagIndex) - (sum1 + sum2) * mean + mean * mean * (n - lagIndex);
+			autoCorrelation[lagIndex] /= (n - lagIndex);
+			headSum += value.applyAsDouble(lagIndex);
+			tailSum += value.applyAsDouble(n - 1 - lagIndex);
+
+			if (lagIndex == 0) {
+				integralOfACFunctionTimes2 = autoCorrelation[0];
+			} else if (lagIndex % 2 == 0) {
+				// fancy stopping criterion - see main comment in Tracer code of BEAST 1
+				if (autoCorrelation[lagIndex - 1] + autoCorrelation[lagIndex] > 0) {
+					integralOfACFunctionTimes2 += 2.0 * (autoCorrelation[lagIndex - 1] + autoCorrelation[lagIndex]);
+				} else {
+					break;
+				}
+			}
+		}
+
+		// auto correlation time
+		double act = integralOfACFunctionTimes2 / autoCorrelation[0];
+		return n / act;
+	}
+
+	/** move window of chain to [newStart, newEnd) **/
+	private void update(int chain, int newStart, int newEnd) {
+		TraceColumn trace = traces[chain];
+		int size = end[chain] - start[chain];
+		if (size == 0 || newEnd < end[chain] || newStart >= end[chain] ||
+				Math.abs(newStart - start[chain]) > size || removed[chain] > REBUILD_FACTOR * size) {
+			// cheaper (or necessary) to start from scratch
+			Arrays.fill(laggedSums[chain], 0.0);
+			sums[chain] = 0;
+			removed[chain] = 0;
+			start[chain] = newStart;
+			end[chain] = newStart;
+		}
+		double [] lagged = laggedSums[chain];
+
+		// burn-in moved backward: add samples at start of window
+		while (start[chain] > newStart) {
+			int t = --start[chain];
+			double x = trace.get(t);
+			int maxLag = Math.min(this.maxLag, end[chain] - t);
+			for (int lag = 0; lag < maxLag; lag++) {
+				lagged[lag] += x * trace.get(t + lag);
+			}
+			sums[chain] += x;
+		}
+
+		// burn-in moved forward: subtract samples at start of window
+		while (start[chain] < newStart) {
+			int t = start[chain]++;
+			double x = trace.get(t);
+			int maxLag = Math.min(this.maxLag, end[chain] - t);
+			for (int lag = 0; lag < maxLag; lag++) {
+				lagged[lag] -= x * trace.get(t + lag);
+			}
+			sums[chain] -= x;
+			removed[chain]++;
+		}
+
+		// add new samples at end of window
+		while (end[chain] < newEnd) {
+			int t = end[chain]++;
+			double x = trace.get(t);
+			int maxLag = Math.min(this.maxLag, t - start[chain] + 1);
+			for (int lag = 0; lag < maxLag; lag++) {
+				lagged[lag] += x * trace.get(t - lag);
+			}
+			sums[chain] += x;
+		}
+	}
+
+	/** @return sum of trace[t]*trace[t+lag] over pairs in the concatenated trace that span different chains **/
+	private double junction(int lag, int n) {
+		double sum = 0;
+		for (int i = 0; i < traces.length - 1; i++) {
+			int size = end[i] - start[i];
+			int first = offsets[i] + Math.max(0, size - lag);
+			int last = offsets[i] + size;
+			for (int p = first; p < last && p + lag < n; p++) {
+				sum += traces[i].get(start[i] + p - offsets[i]) * value(p + lag);
+			}
+		}
+		return sum;
+	}
+
+	/** @return value at position pos in the concatenated trace **/
+	private double value(int pos) {
+		int i = traces.length - 1;
+		while (offsets[i] > pos) {
+			i--;
+		}
+		return traces[i].get(start[i] + pos - offsets[i]);
+	}
+}
@@ -0,0 +1,119 @@
+package asm.inference;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+/**
+ * Tails a set of log files that are being appended to.
+ * Instead of polling at fixed intervals, await() wakes up as soon as any of
+ * the files is created or modified, with pollInterval as upper bound on the
+ * waiting time for file systems where change notification is slow or absent.
+ */
+public class LogTailer implements Closeable {
+	private final WatchService watchService;
+	/** directories registered with the watch service **/
+	private final Set<Path> directories = new HashSet<>();
+	/** maximum time in milliseconds to wait for a file change notification **/
+	private final long pollInterval;
+
+	public LogTailer(long pollInterval) throws IOException {
+		this.pollInterval = pollInterval;
+		watchService = FileSystems.getDefault().newWatchService();
+	}
+
+	/** open file for tailing, and wait for it to be created if it does not exist yet **/
+	public Tail open(String fileName) throws IOException, InterruptedException {
+		Path path = Paths.get(fileName).toAbsolutePath();
+		Path dir = path.getParent();
+		if (directories.add(dir)) {
+			dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+		}
+		while (!Files.exists(path)) {
+			await();
+		}
+		return new Tail(FileChannel.open(path, StandardOpenOption.READ));
+	}
+
+	/** block till any of the files is modified, or pollInterval milliseconds passed **/
+	public void await() throws InterruptedException {
+		WatchKey key = watchService.poll(pollInterval, TimeUnit.MILLISECONDS);
+		while (key != null) {
+			key.pollEvents();
+			key.reset();
+			// drain other pending notifications as well
+			key = watchService.poll();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		watchService.close();
+	}
+
+	/** reads complete lines from a file that is being appended to **/
+	public class Tail implements Closeable {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		/** bytes of the line read so far **/
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		Tail(FileChannel channel) {
+			this.channel = channel;
+			buffer.flip();
+		}
+
+		/**
+		 * @return next line from the file, or null if no complete line is available yet.
+		 * Incomplete lines are kept till the rest of the line is written.
+		 */
+		public String readLine() throws IOException {
+			while (true) {
+				while (buffer.hasRemaining()) {
+					byte b = buffer.get();
+					if (b == '\n') {
+						String str = line.toString(StandardCharsets.UTF_8);
+						line.reset();
+						if (str.endsWith("\r")) {
+							str = str.substring(0, str.length() - 1);
+						}
+						return str;
+					}
+					line.write(b);
+				}
+				buffer.clear();
+				int n = channel.read(buffer);
+				buffer.flip();
+				if (n <= 0) {
+					return null;
+				}
+			}
+		}
+
+		/** wait for the file to grow, see LogTailer.await() **/
+		public void await() throws InterruptedException {
+			LogTailer.this.await();
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
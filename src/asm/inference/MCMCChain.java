@@ -1,9 +1,20 @@
 package asm.inference;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
 
+import beast.base.core.BEASTInterface;
 import beast.base.core.Description;
+import beast.base.core.Function;
+import beast.base.core.Input;
 import beast.base.core.Log;
+import beast.base.core.Loggable;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.Logger;
 import beast.base.inference.MCMC;
 import beast.base.inference.Operator;
 
@@ -15,6 +26,102 @@ public class MCMCChain extends MCMC {
 		terminate = true;
 	}
 	
+	/** queue to which logged samples are pushed, or null if samples are only logged to file **/
+	private volatile BlockingQueue<ChainSample> sampleQueue = null;
+	/** tree that is logged by the tree logger **/
+	private Tree tree;
+	/** taxon names of the tree, shared by all logged trees **/
+	private String [] taxa;
+	/** items logged by the trace logger, in order of the trace log columns **/
+	private Function [] loggedFunctions;
+	/** number of trace log columns, including the sample number **/
+	private int columnCount;
+	/** log frequency of the trace logger **/
+	private long logEvery;
+	
+	/**
+	 * Push every sample logged by the trace and tree logger on the queue, 
+	 * so that the log watcher does not need to read it back from the log files. 
+	 * Values are taken from the logged items directly. The log files are still written.
+	 * @throws IllegalArgumentException if the values of an item cannot be matched to the columns
+	 * it writes to the trace log, in which case samples should be read from the log files
+	 */
+	void setSampleQueue(BlockingQueue<ChainSample> sampleQueue, int iLog, int iTreeLog) {
+		Object o = loggersInput.get().get(iTreeLog).loggersInput.get().get(0);
+		if (!(o instanceof Tree) && o instanceof BEASTInterface) {
+			// e.g. TreeWithMetaDataLogger
+			Input<?> treeInput = ((BEASTInterface) o).getInput("tree");
+			o = treeInput == null ? null : treeInput.get();
+		}
+		if (!(o instanceof Tree)) {
+			throw new IllegalArgumentException("Cannot find the tree logged by the tree logger");
+		}
+		tree = (Tree) o;
+		taxa = new String[tree.getLeafNodeCount()];
+		for (int i = 0; i < taxa.length; i++) {
+			taxa[i] = tree.getNode(i).getID();
+		}
+
+		Logger traceLogger = loggersInput.get().get(iLog);
+		List<Function> functions = new ArrayList<>();
+		columnCount = 1;
+		for (Object item : traceLogger.loggersInput.get()) {
+			// values of an item can only be taken directly if there is one for every column it writes,
+			// which is not the case for e.g. TreeStatLogger, which has dimension 1 but writes 2 columns
+			int columns = headerColumnCount((Loggable) item);
+			if (!(item instanceof Function) || ((Function) item).getDimension() != columns) {
+				throw new IllegalArgumentException("Cannot obtain the " + columns + " values of " + ((BEASTInterface) item).getID() 
+						+ " in the trace log directly");
+			}
+			functions.add((Function) item);
+			columnCount += columns;
+		}
+		loggedFunctions = functions.toArray(new Function[0]);
+		logEvery = traceLogger.everyInput.get();
+		this.sampleQueue = sampleQueue;
+	}
+	
+	/** @return number of columns item writes in the header of the trace log **/
+	private static int headerColumnCount(Loggable item) {
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		item.init(new PrintStream(header));
+		int columns = 0;
+		for (String label : header.toString().split("\t")) {
+			if (label.trim().length() > 0) {
+				columns++;
+			}
+		}
+		return columns;
+	}
+
+	/** stop pushing samples on the queue, when samples are read from the log files instead **/
+	void clearSampleQueue() {
+		sampleQueue = null;
+	}
+
+	/** @return number of values in samples pushed on the queue, which should match the trace log header **/
+	int getColumnCount() {
+		return columnCount;
+	}
+	
+	@Override
+	public void log(long sampleNr) {
+		super.log(sampleNr);
+		BlockingQueue<ChainSample> sampleQueue = this.sampleQueue;
+		if (sampleQueue != null && sampleNr >= 0 && sampleNr % logEvery == 0) {
+			// same values as the trace logger writes, without formatting and parsing them
+			double [] values = new double[columnCount];
+			values[0] = sampleNr;
+			int k = 1;
+			for (Function f : loggedFunctions) {
+				for (int i = 0; i < f.getDimension(); i++) {
+					values[k++] = f.getArrayValue(i);
+				}
+			}
+			sampleQueue.add(new ChainSample(values, new CompactTree(tree, taxa)));
+		}
+	}
+	
 	/**
      * main MCMC loop 
      * @throws IOException *
@@ -2,6 +2,10 @@ package asm.inference;
 
 
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 import beast.base.core.Description;
 
 @Description("Determine convergence based on one or more running chains")
@@ -29,5 +33,32 @@ public interface MCMCConvergenceCriterion {
 
     public default void initAndValidate() {}
 
+	/**
+	 * Criteria may be evaluated concurrently. Criteria returning the same object here
+	 * share mutable state, and are evaluated one after another on the same thread.
+	 * @return object representing mutable state shared with other criteria, or null if there is none
+	 */
+	default public Object getSharedState() {
+		return null;
+	}
+
+	/**
+	 * write state that cannot be recalculated from the logs when resuming a run
+	 */
+	default public void storeState(DataOutputStream out) throws IOException {
+	}
+
+	/**
+	 * restore state written by storeState() when resuming a run
+	 */
+	default public void restoreState(DataInputStream in) throws IOException {
+	}
+
+	/**
+	 * release resources, such as threads, at the end of the run
+	 */
+	default public void close() {
+	}
+
     // public void process(int chainNr, Double [] logLine, Node root);
 }
@@ -0,0 +1,43 @@
+package asm.inference;
+
+/**
+ * Robinson-Foulds distance between rooted trees: the number of clades that occur in
+ * one tree but not in the other. Clades are compared by 64 bit hashes of their leaf
+ * bitsets, calculated once per tree by CompactTree and kept sorted, so a distance
+ * is a single merge of two sorted arrays.
+ */
+public class RFDistance implements TreeMetric {
+
+	@Override
+	public long distance(CompactTree tree1, CompactTree tree2) {
+		if (tree1.getLeafCount() != tree2.getLeafCount()) {
+			throw new IllegalArgumentException("Trees should have the same number of leaves, not " + tree1.getLeafCount() + " and " + tree2.getLeafCount());
+		}
+		long [] clades1 = tree1.getCladeHashes();
+		long [] clades2 = tree2.getCladeHashes();
+		int i = 0, j = 0, shared = 0;
+		while (i < clades1.length && j < clades2.length) {
+			if (clades1[i] < clades2[j]) {
+				i++;
+			} else if (clades1[i] > clades2[j]) {
+				j++;
+			} else {
+				shared++;
+				i++;
+				j++;
+			}
+		}
+		return clades1.length + clades2.length - 2 * shared;
+	}
+
+	@Override
+	public void prepare(CompactTree tree) {
+		tree.getCladeHashes();
+	}
+
+	/** @return largest RF distance between two binary trees with leafCount leaves, 2(n-2) **/
+	@Override
+	public long maxDistance(int leafCount) {
+		return 2L * Math.max(leafCount - 2, 0);
+	}
+}
@@ -0,0 +1,188 @@
+package asm.inference;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * RNNI distance between ranked trees, calculated with the FindPath algorithm of
+ * Collienne and Gavryushkin, which transforms the first tree into the second one
+ * by lowering the most recent common ancestor of every cluster of the second tree,
+ * from the lowest rank upwards, to the rank it has in the second tree. Each step is
+ * either a rank swap of neighbouring internal nodes or an NNI move on an edge between
+ * neighbouring ranks.
+ *
+ * Trees are taken from the ranked encoding precomputed by CompactTree, and the tree
+ * being transformed is kept in arrays that are reused by each thread, so calculating
+ * a distance does not allocate any memory.
+ */
+public class RNNIDistance implements TreeMetric {
+	/** arrays for transforming trees, one set for each thread **/
+	private final static ThreadLocal<Workspace> workspace = ThreadLocal.withInitial(Workspace::new);
+
+	/** @return RNNI distance between tree1 and tree2, which should have the same taxa **/
+	@Override
+	public long distance(CompactTree tree1, CompactTree tree2) {
+		if (tree1.getLeafCount() != tree2.getLeafCount()) {
+			throw new IllegalArgumentException("Trees should have the same number of leaves, not " + tree1.getLeafCount() + " and " + tree2.getLeafCount());
+		}
+		Workspace w = workspace.get();
+		return w.distance(tree1.getLeafCount(), tree1.getRankedChildren(), tree2.getRankedChildren(),
+				w.leafMap(tree1.getTaxa(), tree2.getTaxa()));
+	}
+
+	/** @return largest RNNI distance between two trees with leafCount leaves, (n-1)(n-2)/2 **/
+	@Override
+	public long maxDistance(int leafCount) {
+		return (long) (leafCount - 1) * (leafCount - 2) / 2;
+	}
+
+	/** tree being transformed, reused for all distances calculated by the same thread **/
+	static class Workspace {
+		/** children of internal nodes of the tree being transformed, in the encoding of CompactTree **/
+		private int [] children = new int[0];
+		/** parent of each (encoded) node, -1 for the root **/
+		private int [] parent = new int[0];
+
+		/** taxa of the last pair of trees with different taxon arrays, and the map from leaves of the second to those of the first **/
+		private String [] taxa1, taxa2;
+		private int [] leafMap;
+
+		/**
+		 * @param n number of leaves
+		 * @param ranked1 ranked encoding of the first tree
+		 * @param ranked2 ranked encoding of the second tree
+		 * @param map leaf number in first tree for every leaf number in second tree, or null if these are the same
+		 * @return number of RNNI moves FindPath takes from first to second tree
+		 */
+		long distance(int n, int [] ranked1, int [] ranked2, int [] map) {
+			if (children.length < ranked1.length) {
+				children = new int[ranked1.length];
+				parent = new int[2 * n - 1];
+			}
+			System.arraycopy(ranked1, 0, children, 0, ranked1.length);
+			for (int i = 0; i < ranked1.length; i++) {
+				parent[children[i]] = n + i / 2;
+			}
+			parent[2 * n - 2] = -1;
+
+			long d = 0;
+			for (int i = 1; i < n; i++) {
+				// children of rank i in the second tree, which are nodes of the first tree as well
+				// since clusters of rank below i are the same in both trees by now
+				int p = ranked2[2 * (i - 1)];
+				int q = ranked2[2 * (i - 1) + 1];
+				if (map != null) {
+					p = p < n ? map[p] : p;
+					q = q < n ? map[q] : q;
+				}
+				int u = mrca(p, q);
+				while (u > n + i - 1) {
+					// node of rank one below u
+					int v = u - 1;
+					int uc = 2 * (u - n);
+					if (children[uc] == v || children[uc + 1] == v) {
+						// NNI move: v gets the child of v containing p or q together with the other child of u
+						int w = children[uc] == v ? children[uc + 1] : children[uc];
+						int vc = 2 * (v - n);
+						int x = children[vc], y = children[vc + 1];
+						if (!isBelow(p, x) && !isBelow(q, x)) {
+							x = y;
+							y = children[vc];
+						}
+						children[vc] = x;
+						children[vc + 1] = w;
+						parent[x] = v;
+						parent[w] = v;
+						children[uc] = v;
+						children[uc + 1] = y;
+						parent[y] = u;
+					} else {
+						swapRanks(u, v, n);
+					}
+					u = v;
+					d++;
+				}
+			}
+			return d;
+		}
+
+		/** @return most recent common ancestor of nodes p and q, using that encoded nodes are ordered by rank **/
+		private int mrca(int p, int q) {
+			while (p != q) {
+				if (p < q) {
+					p = parent[p];
+				} else {
+					q = parent[q];
+				}
+			}
+			return p;
+		}
+
+		/** @return whether node p is node x or a descendant of node x **/
+		private boolean isBelow(int p, int x) {
+			while (p < x) {
+				p = parent[p];
+			}
+			return p == x;
+		}
+
+		/** exchange ranks of internal nodes u and v, where neither is a child of the other **/
+		private void swapRanks(int u, int v, int n) {
+			int uc = 2 * (u - n), vc = 2 * (v - n);
+			for (int k = 0; k < 2; k++) {
+				int tmp = children[uc + k];
+				children[uc + k] = children[vc + k];
+				children[vc + k] = tmp;
+				parent[children[uc + k]] = u;
+				parent[children[vc + k]] = v;
+			}
+			int pu = parent[u], pv = parent[v];
+			if (pu != pv) {
+				replaceChild(pu, u, v, n);
+				replaceChild(pv, v, u, n);
+				parent[u] = pv;
+				parent[v] = pu;
+			}
+		}
+
+		private void replaceChild(int node, int oldChild, int newChild, int n) {
+			if (node < 0) {
+				return;
+			}
+			int c = 2 * (node - n);
+			if (children[c] == oldChild) {
+				children[c] = newChild;
+			} else {
+				children[c + 1] = newChild;
+			}
+		}
+
+		/** @return leaf number in tree with taxa1 for every leaf number in tree with taxa2, or null if these are the same **/
+		private int [] leafMap(String [] taxa1, String [] taxa2) {
+			if (taxa1 == taxa2 || taxa1 == null || taxa2 == null) {
+				return null;
+			}
+			if (taxa1 != this.taxa1 || taxa2 != this.taxa2) {
+				this.taxa1 = taxa1;
+				this.taxa2 = taxa2;
+				leafMap = null;
+				if (!Arrays.equals(taxa1, taxa2)) {
+					Map<String, Integer> index = new HashMap<>();
+					for (int i = 0; i < taxa1.length; i++) {
+						index.put(taxa1[i], i);
+					}
+					leafMap = new int[taxa2.length];
+					for (int i = 0; i < taxa2.length; i++) {
+						Integer j = index.get(taxa2[i]);
+						if (j == null) {
+							throw new IllegalArgumentException("Taxon " + taxa2[i] + " does not occur in both trees");
+						}
+						leafMap[i] = j;
+					}
+				}
+			}
+			return leafMap;
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package asm.inference;
+
+/**
+ * Robinson-Foulds distance estimated from bottom-k sketches: for every tree only the k
+ * smallest clade hashes are kept. The k smallest hashes of the union of the clades of
+ * two trees are all in the union of their sketches, and the fraction of these shared by
+ * both trees estimates the Jaccard similarity J of their clade sets. For binary trees
+ * with m clades each, the distance is then estimated as 2m(1-J)/(1+J).
+ *
+ * Distances take O(k) time whatever the number of taxa, at the cost of a relative error
+ * of roughly 1/sqrt(k) in the estimated similarity. When trees have at most k clades,
+ * the distance is exact.
+ */
+public class SketchRFDistance implements TreeMetric {
+	private final int sketchSize;
+
+	public SketchRFDistance(int sketchSize) {
+		if (sketchSize <= 0) {
+			throw new IllegalArgumentException("sketchSize should be positive, not " + sketchSize);
+		}
+		this.sketchSize = sketchSize;
+	}
+
+	@Override
+	public void prepare(CompactTree tree) {
+		tree.getCladeSketch(sketchSize);
+	}
+
+	@Override
+	public long distance(CompactTree tree1, CompactTree tree2) {
+		if (tree1.getLeafCount() != tree2.getLeafCount()) {
+			throw new IllegalArgumentException("Trees should have the same number of leaves, not " + tree1.getLeafCount() + " and " + tree2.getLeafCount());
+		}
+		long [] sketch1 = tree1.getCladeSketch(sketchSize);
+		long [] sketch2 = tree2.getCladeSketch(sketchSize);
+		// walk through the smallest hashes of the union
+		int i = 0, j = 0, taken = 0, shared = 0;
+		while (taken < sketchSize && (i < sketch1.length || j < sketch2.length)) {
+			if (j == sketch2.length || (i < sketch1.length && sketch1[i] < sketch2[j])) {
+				i++;
+			} else if (i == sketch1.length || sketch1[i] > sketch2[j]) {
+				j++;
+			} else {
+				shared++;
+				i++;
+				j++;
+			}
+			taken++;
+		}
+		if (taken == 0) {
+			return 0;
+		}
+		double clades = 2.0 * Math.max(tree1.getLeafCount() - 2, 0);
+		double jaccard = (double) shared / taken;
+		return Math.round(clades * (1 - jaccard) / (1 + jaccard));
+	}
+
+	/** @return largest RF distance between two binary trees with leafCount leaves, 2(n-2) **/
+	@Override
+	public long maxDistance(int leafCount) {
+		return 2L * Math.max(leafCount - 2, 0);
+	}
+}
@@ -0,0 +1,434 @@
+package asm.inference;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+
+@Description("Stopping criterion based on rank-normalised split-R-hat (Vehtari et al. 2021) of selected items from trace, "
+		+ "and optionally the bulk and tail ESS of their rank-normalised values")
+public class SplitRHat extends BEASTObject implements MCMCConvergenceCriterion {
+	public Input<Double> thresholdInput = new Input<>("threshold", "maximum of bulk and tail R-hat below which chains are considered converged", 1.01);
+	public Input<String> tracesInput = new Input<>("traces", "comma separated string of trace entries to be tracked", "posterior,prior,likelihood");
+	public Input<Integer> binCountInput = new Input<>("bins", "number of bins values are quantised into for ranking. "
+			+ "Values in the same bin are considered tied, so more bins gives more accurate ranks", 4096);
+	public Input<Integer> targetESSInput = new Input<>("targetESS", "target effective sample size per chain of rank-normalised traces "
+			+ "and of their distances to the median (bulk and tail ESS), or 0 if ESS is not checked", 0);
+	public Input<ESSMethod> essMethodInput = new Input<>("essMethod", "method for estimating ESS of rank-normalised traces", ESSMethod.FFT, ESSMethod.values());
+
+	private TraceInfo traceInfo;
+	private TraceColumn[][] logLines;
+	private int nChains;
+	private int binCount;
+	private int targetESS;
+	private double threshold;
+
+	/** tracked column indices, known once the trace log headers are read **/
+	private int[] map;
+	private ColumnRanks[] ranks;
+
+	@Override
+	public void initAndValidate() {
+		threshold = thresholdInput.get();
+		binCount = binCountInput.get();
+		targetESS = targetESSInput.get();
+		if (binCount < 2) {
+			throw new IllegalArgumentException("bins should be at least 2, not " + binCount);
+		}
+	}
+
+	@Override
+	public void setup(int nChains, TraceInfo traceInfo) {
+		this.traceInfo = traceInfo;
+		this.logLines = traceInfo.logLines;
+		this.nChains = nChains;
+		map = null;
+		ranks = null;
+	}
+
+	@Override
+	public boolean converged(int[] burnin, int end) {
+		if (map == null) {
+			map = traceInfo.columnIndices(tracesInput.get());
+			ranks = new ColumnRanks[map.length];
+			for (int j = 0; j < map.length; j++) {
+				ranks[j] = new ColumnRanks(map[j]);
+			}
+		}
+
+		// split-R-hat requires chains of equal length, so all chains use the largest burn-in
+		int start = 0;
+		for (int b : burnin) {
+			start = Math.max(start, Math.min(b, end));
+		}
+		// ... and both halves of every chain of equal length
+		start += (end - start) % 2;
+		if (end - start < 4) {
+			CriterionOutput.info().print("R^ NaN\t");
+			return false;
+		}
+
+		double maxRHat = 0, minESS = Double.POSITIVE_INFINITY;
+		for (ColumnRanks column : ranks) {
+			column.update(start, end);
+			double rHat = column.calcRHat();
+			maxRHat = Math.max(maxRHat, rHat);
+			CriterionOutput.info().print(TraceInfo.f.format(rHat) + " ");
+			if (targetESS > 0) {
+				minESS = Math.min(minESS, column.calcESS());
+			}
+		}
+		CriterionOutput.info().print(":" + TraceInfo.f.format(maxRHat) + "\t");
+		if (targetESS > 0) {
+			CriterionOutput.info().print("ESS " + TraceInfo.f1.format(minESS) + "\t");
+			if (!(minESS >= targetESS * nChains)) {
+				return false;
+			}
+		}
+		return maxRHat < threshold;
+	}
+
+	/** @return bulk and tail R-hat, and bulk and tail ESS if targetESS is set, of every tracked trace at the last check **/
+	public Map<String, Double> getLog() {
+		Map<String, Double> logValues = new HashMap<>();
+		if (ranks != null) {
+			for (ColumnRanks column : ranks) {
+				String label = traceInfo.labels[column.column];
+				logValues.put("bulkRHat-" + label, column.bulkRHat);
+				logValues.put("tailRHat-" + label, column.tailRHat);
+				if (targetESS > 0) {
+					logValues.put("bulkESS-" + label, column.bulkESS);
+					logValues.put("tailESS-" + label, column.tailESS);
+				}
+			}
+		}
+		return logValues;
+	}
+
+	/**
+	 * Pooled ranks of one trace column, kept as counts of quantised values in a Fenwick tree,
+	 * with a histogram for each half of every chain. Moving the window only updates
+	 * the samples entering or leaving a half chain, each in O(log(bins)).
+	 */
+	private class ColumnRanks {
+		final int column;
+		/** value range covered by the bins is [lo, lo + binCount * width) **/
+		double lo, width;
+		/** for every half chain (2*chain for first, 2*chain+1 for second half), number of samples in each bin **/
+		int[][] halfCounts;
+		/** counts over all half chains, pooled **/
+		int[] counts;
+		FenwickTree pooled;
+		/** current window of every chain is [start, end), second half starts at mid **/
+		int start = -1, mid, end;
+		/** normal score of every bin, as last calculated by calcRHat() **/
+		double[] z;
+		/** normal score of the distance to the median of every bin, as last calculated by calcRHat() **/
+		double[] folded;
+		/** results of the last calcRHat() and calcESS() calls **/
+		double bulkRHat = Double.NaN, tailRHat = Double.NaN, bulkESS = Double.NaN, tailESS = Double.NaN;
+
+		/** separate estimators for bulk and tail ESS, since estimators may keep state for a trace **/
+		ESSEstimator bulkEstimator, tailEstimator;
+		/** for every chain, bin of the samples from binStart to binEnd, or binEnd = -1 after the bins changed **/
+		int[][] sampleBins;
+		int binStart, binEnd = -1;
+		/** rank-normalised trace and that of the distances to the median, reused for every ESS calculation **/
+		double[] bulkTrace = new double[0], tailTrace = new double[0];
+
+		ColumnRanks(int column) {
+			this.column = column;
+			halfCounts = new int[2 * nChains][binCount];
+			counts = new int[binCount];
+			pooled = new FenwickTree(binCount);
+			z = new double[binCount];
+			folded = new double[binCount];
+		}
+
+		/** move window of all chains to [newStart, newEnd) **/
+		void update(int newStart, int newEnd) {
+			if (start < 0) {
+				rebuild(newStart, newEnd);
+				return;
+			}
+			int newMid = newStart + (newEnd - newStart) / 2;
+			// only samples between old and new boundaries change half chain
+			int[][] ranges = {
+					{Math.min(start, newStart), Math.max(start, newStart)},
+					{Math.min(mid, newMid), Math.max(mid, newMid)},
+					{Math.min(end, newEnd), Math.max(end, newEnd)}};
+			Arrays.sort(ranges, (r1, r2) -> Integer.compare(r1[0], r2[0]));
+			int from = ranges[0][0], to = ranges[0][1];
+			for (int k = 1; k <= ranges.length; k++) {
+				if (k < ranges.length && ranges[k][0] <= to) {
+					to = Math.max(to, ranges[k][1]);
+					continue;
+				}
+				if (!updateRange(from, to, newStart, newMid, newEnd)) {
+					// a value falls outside the range of the bins
+					rebuild(newStart, newEnd);
+					return;
+				}
+				if (k < ranges.length) {
+					from = ranges[k][0];
+					to = ranges[k][1];
+				}
+			}
+			start = newStart;
+			mid = newMid;
+			end = newEnd;
+
+			// rebuild to use a narrower range when the values occupy only a small part of the bins
+			int first = pooled.search(0), last = pooled.search(pooled.total() - 1);
+			if (last > first && last - first < binCount / 8) {
+				rebuild(start, end);
+			}
+		}
+
+		/** move samples in [from, to) that changed half chain when the window moves to [newStart, newEnd),
+		 * @return false if a value is outside the range of the bins **/
+		private boolean updateRange(int from, int to, int newStart, int newMid, int newEnd) {
+			for (int t = from; t < to; t++) {
+				int oldHalf = half(t, start, mid, end);
+				int newHalf = half(t, newStart, newMid, newEnd);
+				if (oldHalf != newHalf) {
+					for (int i = 0; i < nChains; i++) {
+						int bin = bin(logLines[i][column].get(t));
+						if (bin < 0) {
+							return false;
+						}
+						if (oldHalf >= 0) {
+							move(2 * i + oldHalf, bin, -1);
+						}
+						if (newHalf >= 0) {
+							move(2 * i + newHalf, bin, 1);
+						}
+					}
+				}
+			}
+			return true;
+		}
+
+		/** @return 0 if sample t is in the first half, 1 if in the second half, -1 if outside the window **/
+		private int half(int t, int start, int mid, int end) {
+			return t < start || t >= end ? -1 : (t < mid ? 0 : 1);
+		}
+
+		private void move(int half, int bin, int delta) {
+			halfCounts[half][bin] += delta;
+			counts[bin] += delta;
+			pooled.add(bin, delta);
+		}
+
+		/** @return bin of value x, or -1 if outside the range of the bins. Infinite values go into the
+		 * outermost bins, and NaN into the lowest, so they rank at the extremes instead of breaking the bins **/
+		private int bin(double x) {
+			if (x == Double.POSITIVE_INFINITY) {
+				return binCount - 1;
+			}
+			if (!(x > Double.NEGATIVE_INFINITY)) {
+				return 0;
+			}
+			double b = Math.floor((x - lo) / width);
+			return b >= 0 && b < binCount ? (int) b : -1;
+		}
+
+		/** count samples in [newStart, newEnd) from scratch, with bins covering their range with some margin **/
+		private void rebuild(int newStart, int newEnd) {
+			double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < nChains; i++) {
+				for (int t = newStart; t < newEnd; t++) {
+					double x = logLines[i][column].get(t);
+					if (Double.isFinite(x)) {
+						min = Math.min(min, x);
+						max = Math.max(max, x);
+					}
+				}
+			}
+			if (min > max) {
+				// no finite values
+				min = max = 0;
+			}
+			double range = max > min ? max - min : Math.max(Math.abs(min), 1.0);
+			lo = min - range / 4;
+			width = range * 1.5 / binCount;
+
+			for (int[] h : halfCounts) {
+				Arrays.fill(h, 0);
+			}
+			Arrays.fill(counts, 0);
+			pooled = new FenwickTree(binCount);
+			binEnd = -1;
+			start = newStart;
+			mid = newStart + (newEnd - newStart) / 2;
+			end = newEnd;
+			for (int i = 0; i < nChains; i++) {
+				for (int t = newStart; t < newEnd; t++) {
+					move(2 * i + (t < mid ? 0 : 1), bin(logLines[i][column].get(t)), 1);
+				}
+			}
+		}
+
+		/** @return maximum of bulk and tail split-R-hat, which are kept in bulkRHat and tailRHat **/
+		double calcRHat() {
+			int total = pooled.total();
+			// bulk: normal scores of pooled ranks, tied values get their average rank
+			int below = 0;
+			for (int b = 0; b < binCount; b++) {
+				if (counts[b] > 0) {
+					z[b] = normalScore(below + (counts[b] + 1) / 2.0, total);
+					below += counts[b];
+				}
+			}
+			bulkRHat = rHat(z);
+
+			// tail: normal scores of ranks of distances to the median
+			int median = pooled.search(total / 2);
+			int left = median, right = median + 1;
+			below = 0;
+			while (left >= 0 || right < binCount) {
+				if (left >= 0 && right < binCount && median - left == right - median) {
+					// bins at equal distance from the median are tied
+					int tied = counts[left] + counts[right];
+					folded[left] = folded[right] = normalScore(below + (tied + 1) / 2.0, total);
+					below += tied;
+					left--;
+					right++;
+				} else {
+					int b = right >= binCount || (left >= 0 && median - left < right - median) ? left-- : right++;
+					folded[b] = normalScore(below + (counts[b] + 1) / 2.0, total);
+					below += counts[b];
+				}
+			}
+			tailRHat = rHat(folded);
+			return Math.max(bulkRHat, tailRHat);
+		}
+
+		/** @return split-R-hat of half chains with value score[b] for samples in bin b **/
+		private double rHat(double[] score) {
+			int m = halfCounts.length;
+			int n = mid - start;
+			double[] means = new double[m];
+			double grandMean = 0, within = 0;
+			for (int j = 0; j < m; j++) {
+				int[] h = halfCounts[j];
+				double sum = 0;
+				for (int b = 0; b < binCount; b++) {
+					sum += h[b] * score[b];
+				}
+				means[j] = sum / n;
+				double ss = 0;
+				for (int b = 0; b < binCount; b++) {
+					if (h[b] > 0) {
+						double d = score[b] - means[j];
+						ss += h[b] * d * d;
+					}
+				}
+				within += ss / (n - 1);
+				grandMean += means[j];
+			}
+			within /= m;
+			grandMean /= m;
+			double between = 0;
+			for (int j = 0; j < m; j++) {
+				between += (means[j] - grandMean) * (means[j] - grandMean);
+			}
+			between *= (double) n / (m - 1);
+			if (within == 0) {
+				// all samples in the same bin
+				return 1.0;
+			}
+			double varPlus = (n - 1.0) / n * within + between / n;
+			return Math.sqrt(varPlus / within);
+		}
+
+		/** @return minimum of bulk and tail ESS of the scores calculated by calcRHat(), which are kept in bulkESS and tailESS **/
+		double calcESS() {
+			if (bulkEstimator == null) {
+				bulkEstimator = essMethodInput.get().newEstimator(TraceESS.MAX_LAG);
+				tailEstimator = essMethodInput.get().newEstimator(TraceESS.MAX_LAG);
+			}
+			updateSampleBins();
+			int n = nChains * (end - start);
+			if (bulkTrace.length < n) {
+				bulkTrace = new double[n + n / 2];
+				tailTrace = new double[bulkTrace.length];
+			}
+			int k = 0;
+			for (int i = 0; i < nChains; i++) {
+				int[] bins = sampleBins[i];
+				for (int t = start - binStart; t < end - binStart; t++) {
+					bulkTrace[k] = z[bins[t]];
+					tailTrace[k] = folded[bins[t]];
+					k++;
+				}
+			}
+			bulkESS = bulkEstimator.calcESS(bulkTrace, 0, n);
+			tailESS = tailEstimator.calcESS(tailTrace, 0, n);
+			return Math.min(bulkESS, tailESS);
+		}
+
+		/** make sampleBins cover the window, binning only samples not binned before with the current bins **/
+		private void updateSampleBins() {
+			if (sampleBins == null) {
+				sampleBins = new int[nChains][0];
+			}
+			if (binEnd < 0 || start < binStart || start > binEnd) {
+				binStart = binEnd = start;
+			}
+			int size = end - start;
+			if (end - binStart > sampleBins[0].length) {
+				// drop bins of samples before the window, growing the arrays if that does not make enough room
+				int kept = binEnd - start;
+				for (int i = 0; i < nChains; i++) {
+					int[] bins = sampleBins[i].length >= size ? sampleBins[i] : new int[size + size / 2];
+					System.arraycopy(sampleBins[i], start - binStart, bins, 0, kept);
+					sampleBins[i] = bins;
+				}
+				binStart = start;
+			}
+			for (int i = 0; i < nChains; i++) {
+				for (int t = binEnd; t < end; t++) {
+					sampleBins[i][t - binStart] = bin(logLines[i][column].get(t));
+				}
+			}
+			binEnd = end;
+		}
+	}
+
+	/** @return normal score of rank r out of n, with Blom's offset **/
+	static double normalScore(double r, int n) {
+		return inverseNormal((r - 0.375) / (n + 0.25));
+	}
+
+	/** @return inverse of the standard normal CDF at p in (0,1), using Acklam's rational approximation
+	 * (relative error below 1.2e-9) **/
+	static double inverseNormal(double p) {
+		final double[] a = {-3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02,
+				1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00};
+		final double[] b = {-5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02,
+				6.680131188771972e+01, -1.328068155288572e+01};
+		final double[] c = {-7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00,
+				-2.549732539343734e+00, 4.374664141464968e+00, 2.938163982698783e+00};
+		final double[] d = {7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00,
+				3.754408661907416e+00};
+		final double pLow = 0.02425;
+		if (p < pLow) {
+			double q = Math.sqrt(-2 * Math.log(p));
+			return (((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5]) /
+					((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+		}
+		if (p > 1 - pLow) {
+			double q = Math.sqrt(-2 * Math.log(1 - p));
+			return -(((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5]) /
+					((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+		}
+		double q = p - 0.5;
+		double r = q * q;
+		return (((((a[0] * r + a[1]) * r + a[2]) * r + a[3]) * r + a[4]) * r + a[5]) * q /
+				(((((b[0] * r + b[1]) * r + b[2]) * r + b[3]) * r + b[4]) * r + 1);
+	}
+}
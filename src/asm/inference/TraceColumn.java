@@ -0,0 +1,76 @@
+package asm.inference;
+
+import java.util.Arrays;
+
+/**
+ * Growable column of trace log values, one per logged sample.
+ * Values are stored unboxed in fixed size chunks, so adding a value
+ * never copies the values added before.
+ */
+public class TraceColumn {
+	final static int CHUNK_BITS = 12;
+	final static int CHUNK_SIZE = 1 << CHUNK_BITS;
+	final static int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private double [][] chunks = new double[16][];
+	private int size = 0;
+
+	public void add(double value) {
+		int chunk = size >>> CHUNK_BITS;
+		if (chunk == chunks.length) {
+			chunks = Arrays.copyOf(chunks, chunks.length * 2);
+		}
+		if (chunks[chunk] == null) {
+			chunks[chunk] = new double[CHUNK_SIZE];
+		}
+		chunks[chunk][size & CHUNK_MASK] = value;
+		size++;
+	}
+
+	public double get(int i) {
+		if (i >= size) {
+			throw new IndexOutOfBoundsException("Index " + i + " out of bounds for length " + size);
+		}
+		return chunks[i >>> CHUNK_BITS][i & CHUNK_MASK];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/** copy values with index from (inclusive) to to (exclusive) into dest, starting at destPos **/
+	public void copyTo(int from, int to, double [] dest, int destPos) {
+		if (from < 0 || to > size || from > to) {
+			throw new IndexOutOfBoundsException("Range [" + from + "," + to + ") out of bounds for length " + size);
+		}
+		while (from < to) {
+			int offset = from & CHUNK_MASK;
+			int n = Math.min(CHUNK_SIZE - offset, to - from);
+			System.arraycopy(chunks[from >>> CHUNK_BITS], offset, dest, destPos, n);
+			from += n;
+			destPos += n;
+		}
+	}
+
+	/** @return values with index from (inclusive) to to (exclusive) **/
+	public double [] toArray(int from, int to) {
+		double [] values = new double[to - from];
+		copyTo(from, to, values, 0);
+		return values;
+	}
+
+	/** @return sum of values with index from (inclusive) to to (exclusive) **/
+	public double sum(int from, int to) {
+		double sum = 0;
+		while (from < to) {
+			double [] chunk = chunks[from >>> CHUNK_BITS];
+			int offset = from & CHUNK_MASK;
+			int n = Math.min(CHUNK_SIZE - offset, to - from);
+			for (int i = offset; i < offset + n; i++) {
+				sum += chunk[i];
+			}
+			from += n;
+		}
+		return sum;
+	}
+}
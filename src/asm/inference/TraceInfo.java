@@ -5,7 +5,12 @@ import beast.base.evolution.tree.Tree;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The collection of data from a set of trace logs and set of tree logs.
@@ -18,15 +23,42 @@ public class TraceInfo {
     public static DecimalFormat f1 = new DecimalFormat("#.#");
 
     /** tables of logs, one for each thread + one for the total; [chainIndex][attribute]{values} */
-    List<Double>[][] logLines;
+    TraceColumn[][] logLines;
 
     /** column labels of logLines */
     String[] labels;
 
     /** tables of trees, one for each thread + one for the total */
-    List<Tree>[] trees;
+    List<CompactTree>[] trees;
 
-    DistanceMatrixCache distances;
+    /** topology ids by 128 bit hash of ranked topology, see CompactTree.topologyHash().
+     * Emptied when it reaches MAX_TOPOLOGIES, after which topologies seen before get a new id. **/
+    private Map<Topology, Integer> topologyIds = new HashMap<>();
+    final static int MAX_TOPOLOGIES = 1 << 16;
+    /** next topology id, never reused, since DistanceMatrixCache remembers distances by pair of ids **/
+    private int nextTopologyId = 0;
+
+    private static class Topology {
+        final long hash1, hash2;
+
+        Topology(CompactTree tree) {
+            hash1 = tree.topologyHash(0x243F6A8885A308D3L);
+            hash2 = tree.topologyHash(0x13198A2E03707344L);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Topology && ((Topology) o).hash1 == hash1 && ((Topology) o).hash2 == hash2;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) hash1;
+        }
+    }
+
+    /** tree distance caches, one for every metric used by the stopping criteria, keyed by DistanceMetric.distanceKey() **/
+    Map<String, DistanceMatrixCache> distances = new TreeMap<>();
 
     public TraceInfo(int chainCount) {
         f.setMinimumFractionDigits(3);
@@ -37,7 +69,7 @@ public class TraceInfo {
             trees[i] = new ArrayList<>();
         }
 
-        logLines = new List[chainCount][];
+        logLines = new TraceColumn[chainCount][];
     }
 
 
@@ -74,17 +106,23 @@ public class TraceInfo {
         }
 
         this.traces = tracesString.split(",");
+        map = columnIndices(tracesString);
+    }
 
-        map = new int[traces.length];
+    /** @return indices of the columns with comma separated labels in tracesString, once the labels are known **/
+    int[] columnIndices(String tracesString) {
+        String[] traces = tracesString.split(",");
+        int[] indices = new int[traces.length];
         int k = 0;
         for (String trace : traces) {
-            map[k] = indexOf(labels, trace.trim(), -1);
-            if (map[k] == -1) {
+            indices[k] = indexOf(labels, trace.trim(), -1);
+            if (indices[k] == -1) {
                 throw new IllegalArgumentException("Could not find label " + trace + " in trace log. "
                         + "Use one of " + Arrays.toString(labels));
             }
             k++;
         }
+        return indices;
     }
 
     public String[] getTraceLabels() {
@@ -104,24 +142,271 @@ public class TraceInfo {
         return defaultIndex;
     }
 
+    /** add values of a single trace log line for chain chainNr,
+     * @return false if the number of values does not match the number of columns, in which case the line is ignored **/
+    boolean addLogLine(int chainNr, double[] values) {
+        int columnCount = labels != null ? labels.length : (logLines[0] != null ? logLines[0].length : values.length);
+        if (values.length != columnCount) {
+            return false;
+        }
+        if (logLines[0] == null) {
+            for (int i = 0; i < logLines.length; i++) {
+                logLines[i] = new TraceColumn[values.length];
+                for (int j = 0; j < values.length; j++) {
+                    logLines[i][j] = new TraceColumn();
+                }
+            }
+        }
+        for (int i = 0; i < values.length; i++) {
+            logLines[chainNr][i].add(values[i]);
+        }
+        return true;
+    }
+
+    /** notified of trees being added, for processing trees as soon as they arrive **/
+    public interface TreeListener {
+        void treeAdded(int chainNr, int index);
+    }
+
+    private List<TreeListener> treeListeners = new CopyOnWriteArrayList<>();
+
+    public void addTreeListener(TreeListener listener) {
+        treeListeners.add(listener);
+    }
+
+    /** add tree logged by chain chainNr **/
+    void addTree(int chainNr, CompactTree tree) {
+        int index;
+        synchronized (this) {
+            intern(tree);
+            index = trees[chainNr].size();
+            trees[chainNr].add(isRetained(index) ? tree : null);
+        }
+        for (DistanceMatrixCache cache : distances.values()) {
+            // drop distances restored from a checkpoint that belong to a different tree
+            cache.verify(chainNr, index, tree);
+        }
+        for (TreeListener listener : treeListeners) {
+            listener.treeAdded(chainNr, index);
+        }
+    }
+
+    /** give tree the id of the topology, shared with earlier trees with the same ranked topology **/
+    private void intern(CompactTree tree) {
+        if (topologyIds.size() >= MAX_TOPOLOGIES) {
+            topologyIds.clear();
+        }
+        Integer id = topologyIds.putIfAbsent(new Topology(tree), nextTopologyId);
+        tree.topologyId = id == null ? nextTopologyId++ : id;
+        tree.repeatedTopology = id != null;
+    }
+
+    /** @return number of topology ids given to the trees added so far, which is the number of distinct
+     * ranked topologies as long as fewer than MAX_TOPOLOGIES occurred **/
+    public synchronized int topologyCount() {
+        return nextTopologyId;
+    }
+
+    /** lowest burn-in that later checks can still use, as far as the burn-in strategy guarantees **/
+    private volatile int earliestBurnIn = 0;
+
+    /** @return lowest burn-in that later checks can still use, so data of samples before it can be dropped **/
+    public int getEarliestBurnIn() {
+        return earliestBurnIn;
+    }
+
+    void setEarliestBurnIn(int earliestBurnIn) {
+        this.earliestBurnIn = earliestBurnIn;
+    }
+
+    /** trees still needed by a client: those with index from onwards that are multiples of stride **/
+    private static class Retention {
+        final int from, stride;
+
+        Retention(int from, int stride) {
+            this.from = from;
+            this.stride = stride;
+        }
+
+        boolean retains(int index) {
+            return index >= from && index % stride == 0;
+        }
+    }
+
+    /** trees needed by each client, all trees are kept as long as there are no clients **/
+    private Map<Object, Retention> retention = new HashMap<>();
+
+    /**
+     * Register which trees client will access from now on: trees with index from onwards
+     * that are multiples of stride. Trees that none of the clients need any more are released,
+     * and trees that are added later are only kept if a client needs them, so memory does not
+     * grow with the length of the run. Clients should call this again whenever their needs
+     * change, and must not ask for trees they did not register.
+     */
+    public synchronized void retainTrees(Object client, int from, int stride) {
+        if (stride <= 0) {
+            throw new IllegalArgumentException("stride should be positive, not " + stride);
+        }
+        Retention old = retention.put(client, new Retention(from, stride));
+        if (old == null || (old.from == from && old.stride == stride)) {
+            return;
+        }
+        // only trees retained by the old registration of client can have become superfluous
+        int first = old.from + (old.stride - old.from % old.stride) % old.stride;
+        for (List<CompactTree> chainTrees : trees) {
+            for (int i = first; i < chainTrees.size(); i += old.stride) {
+                if (chainTrees.get(i) != null && !isRetained(i)) {
+                    chainTrees.set(i, null);
+                }
+            }
+        }
+    }
+
+    private boolean isRetained(int index) {
+        if (retention.isEmpty()) {
+            return true;
+        }
+        for (Retention r : retention.values()) {
+            if (r.retains(index)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return number of trees of chain chainNr, safe to call from threads other than the one adding trees **/
+    public synchronized int treeCount(int chainNr) {
+        return trees[chainNr].size();
+    }
+
+    /** @return tree index of chain chainNr, or null if it was released since no client retained it (see retainTrees()),
+     * safe to call from threads other than the one adding trees **/
+    public synchronized CompactTree getCompactTree(int chainNr, int index) {
+        return trees[chainNr].get(index);
+    }
+
+    /** @return cache for distances with key (see DistanceMetric.distanceKey()), created with capacity and storage if there is none yet **/
+    synchronized DistanceMatrixCache distanceCache(String key, int capacity, DistanceStorage storage) {
+        return distances.computeIfAbsent(key, k -> new DistanceMatrixCache(capacity, storage));
+    }
+
+    /** background calculation of distances, at most one for every distance cache **/
+    private Map<String, DistancePrecomputer> precomputers = new HashMap<>();
+
+    /** start calculating distances with key in the background for criterion with the given number of threads, 
+     * unless this is done already for another criterion sharing the distance cache **/
+    synchronized void precompute(String key, TreeESS criterion, int threads) {
+        if (!precomputers.containsKey(key)) {
+            DistancePrecomputer precomputer = new DistancePrecomputer(criterion, this, threads);
+            precomputers.put(key, precomputer);
+            addTreeListener(precomputer);
+        }
+    }
+
+    /** stop calculating distances with key in the background **/
+    synchronized void stopPrecompute(String key) {
+        DistancePrecomputer precomputer = precomputers.remove(key);
+        if (precomputer != null) {
+            treeListeners.remove(precomputer);
+            precomputer.shutdown();
+        }
+    }
+
+    /** number of full trees kept by getTree() **/
+    private final static int TREE_CACHE_SIZE = 16;
+
+    /** recently requested full trees, keyed by chain and tree index **/
+    private Map<Long, Tree> treeCache = new LinkedHashMap<>(TREE_CACHE_SIZE, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Tree> eldest) {
+            return size() > TREE_CACHE_SIZE;
+        }
+    };
+
+    /** @return full tree for tree index of chain chainNr, constructed on demand from the compact tree,
+     * or null if it was released **/
+    public synchronized Tree getTree(int chainNr, int index) {
+        long key = ((long) chainNr << 32) | index;
+        Tree tree = treeCache.get(key);
+        if (tree == null) {
+            CompactTree compactTree = trees[chainNr].get(index);
+            if (compactTree == null) {
+                return null;
+            }
+            tree = compactTree.toTree();
+            treeCache.put(key, tree);
+        }
+        return tree;
+    }
+
+    /** @return number of samples for which both trace log line and tree are available for every chain **/
+    public int sampleCount() {
+        return sampleCount(slowestChain());
+    }
+
+    /** @return index of the chain with fewest samples available **/
+    public int slowestChain() {
+        int slowest = 0;
+        for (int i = 1; i < trees.length; i++) {
+            if (sampleCount(i) < sampleCount(slowest)) {
+                slowest = i;
+            }
+        }
+        return slowest;
+    }
+
+    private int sampleCount(int chainNr) {
+        if (logLines[chainNr] == null) {
+            return 0;
+        }
+        return Math.min(logLines[chainNr][0].size(), trees[chainNr].size());
+    }
+
     public int chainCount() {
         return trees.length;
     }
 
-    public List<Tree>[] getTrees() {
+    public List<CompactTree>[] getTrees() {
         return trees;
     }
 
     public void setTrees(List<List<Tree>> treesList) {
         for (int i = 0; i < treesList.size(); i++) {
-            trees[i] = treesList.get(i);
+            trees[i] = new ArrayList<>(treesList.get(i).size());
+            String[] taxa = null;
+            for (Tree tree : treesList.get(i)) {
+                if (taxa == null) {
+                    taxa = new String[tree.getLeafNodeCount()];
+                    for (int j = 0; j < taxa.length; j++) {
+                        taxa[j] = tree.getNode(j).getID();
+                    }
+                }
+                CompactTree compactTree = new CompactTree(tree, taxa);
+                intern(compactTree);
+                trees[i].add(compactTree);
+            }
         }
     }
 
-    public void setLogs(List<Double>[][] logLines) {
+    public void setLogs(TraceColumn[][] logLines) {
         this.logLines = logLines;
     }
 
+    public void setLogs(List<Double>[][] logLines) {
+        this.logLines = new TraceColumn[logLines.length][];
+        for (int i = 0; i < logLines.length; i++) {
+            this.logLines[i] = new TraceColumn[logLines[i].length];
+            for (int j = 0; j < logLines[i].length; j++) {
+                this.logLines[i][j] = new TraceColumn();
+                for (double d : logLines[i][j]) {
+                    this.logLines[i][j].add(d);
+                }
+            }
+        }
+    }
+
     public void setLabels(String[] traceLabels) {
         this.labels = traceLabels;
     }
@@ -1,17 +1,15 @@
 package asm.inference;
 
 
-import java.util.Arrays;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.List;
 
 import beast.base.core.BEASTObject;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.core.Log;
-import beast.base.evolution.tree.Tree;
-import beast.base.evolution.tree.TreeInterface;
-import beast.base.inference.util.ESS;
-import beastlabs.evolution.tree.RNNIMetric;
 
 @Description("Tree ESS criterion for convergence based on trees alone")
 public class TreeESS extends BEASTObject implements MCMCConvergenceCriterion {
@@ -22,11 +20,27 @@ public class TreeESS extends BEASTObject implements MCMCConvergenceCriterion {
 	public Input<Integer> cacheLimitInput = new Input<>("cacheLimit", 
 			"Maximum size of the tree distance cache (default 1024). "
 			+ "When limit is reached, half of the cache is purged", 1024);
+	public Input<DistanceStorage> cacheStorageInput = new Input<>("cacheStorage", "where to keep the tree distance cache: "
+			+ "on the Java heap, off-heap in direct buffers, or in a memory-mapped temporary file (default Heap)", 
+			DistanceStorage.Heap, DistanceStorage.values());
 	public Input<Integer> ESSSampleSizeInput = new Input<>("sampleSize",
 			"number of trees used to calculated psuedo ESS (default 10)", 10);
+	public Input<Integer> precomputeThreadsInput = new Input<>("precomputeThreads", "number of background threads calculating "
+			+ "tree distances as soon as trees are logged, so that checks find them in the cache (default 0, calculating "
+			+ "distances when checking only)", 0);
+	public Input<DistanceMetric> metricInput = new Input<>("metric", "tree distance the criterion is based on: RNNI, or Robinson-Foulds (RF), "
+			+ "which is less sensitive but much cheaper to calculate for large trees, or RF estimated from clade sketches (SketchRF) "
+			+ "for very large trees (default RNNI)", DistanceMetric.RNNI, DistanceMetric.values());
+	public Input<Integer> sketchSizeInput = new Input<>("sketchSize", "number of clades per tree used to estimate distances "
+			+ "when metric is SketchRF: larger is more accurate but slower (default 256)", 256);
+	public Input<ESSMethod> essMethodInput = new Input<>("essMethod", "method for estimating ESS of the distance traces", 
+			ESSMethod.Tracer, ESSMethod.values());
 
 	protected TraceInfo traceInfo;
-	protected List<Tree>[] trees;
+	protected List<CompactTree>[] trees;
+	protected TreeMetric metric;
+	/** cache of distances, shared with other criteria using the same metric and sketch size **/
+	protected DistanceMatrixCache distances;
 	protected int numChains;
 	public int getNumChains() {
 		return numChains;
@@ -36,8 +50,9 @@ public class TreeESS extends BEASTObject implements MCMCConvergenceCriterion {
 	protected double smoothing;
 
 	protected int cacheLimit;
-	// delta = gap between sampled trees due to cache pruning
-	protected int delta = 1;
+	// delta = gap between sampled trees due to cache pruning, 
+	// volatile since it is read by background threads calculating distances
+	protected volatile int delta = 1;
 	protected int N;
 	
 	
@@ -91,6 +106,7 @@ public class TreeESS extends BEASTObject implements MCMCConvergenceCriterion {
 		
 		if (end/delta > cacheLimit) {
 			delta *= 2;
+			deltaChanged();
 //			if (indices != null) {
 //				for (int i = 0; i < N; i++) {
 //					indices[i] = indices[i] - indices[i] % delta;
@@ -100,8 +116,7 @@ public class TreeESS extends BEASTObject implements MCMCConvergenceCriterion {
 			return converged(burnin, end);
 		}
 
-		int start = (int)(end * (1.0-smoothing));
-		start = start - start % delta;
+		int start = windowStart(end);
 
 		for (int i = 0; i < numChains; i++) {
 			if (pseudoESS(i, start, end) < targetESS) {
@@ -112,6 +127,12 @@ public class TreeESS extends BEASTObject implements MCMCConvergenceCriterion {
 	}
 
 	
+	/** @return first tree of the smoothing window for trees up to end, on the delta grid **/
+	protected int windowStart(int end) {
+		int start = (int)(end * (1.0-smoothing));
+		return start - start % delta;
+	}
+
 	int [] indices;
 	// collects ESSs for N trees and returns the mean (should be median?)
 	protected double pseudoESS(int treeSet, int cutStart, int cutEnd) {
@@ -132,9 +153,8 @@ public class TreeESS extends BEASTObject implements MCMCConvergenceCriterion {
 		}
 
 		
-		System.out.println(Arrays.toString(indices));
 		// calc sum of distances to the trees with index from `indices`
-		Double [][] trace = new Double[N][(cutEnd-cutStart)/delta];
+		double [][] trace = new double[N][(cutEnd-cutStart)/delta];
 		int [] k = new int[N];
 		for (int i = cutStart; i < cutEnd; i += delta) {
 			for (int j = 0; j < N; j++) {
@@ -149,10 +169,9 @@ public class TreeESS extends BEASTObject implements MCMCConvergenceCriterion {
 
 		// calc ESS for each trace
 		double [] ess = new double[N];
-		// TODO: use incremental ESS calculation
-		// instead of calculating it from scratch every time
+		ESSEstimator estimator = essMethodInput.get().newEstimator(TraceESS.MAX_LAG);
 		for (int j = 0; j < N; j += 1) {
-			ess[j] = ESS.calcESS(trace[j], 1);
+			ess[j] = estimator.calcESS(trace[j], 0, trace[j].length);
 		}
 		// calculate mean ESS
 		double sum = 0;
@@ -161,41 +180,163 @@ public class TreeESS extends BEASTObject implements MCMCConvergenceCriterion {
 		}
 		double meanESS = sum / N;
 		
-		Log.info.print("pseudoESS = " + traceInfo.f1.format(meanESS) + " ");
+		CriterionOutput.info().print("pseudoESS = " + traceInfo.f1.format(meanESS) + " ");
 		return meanESS;
 	}
 
+	/** @return distance+1, which the PSRF and pseudo ESS calculations are based on **/
 	protected float distancePlusOne(int treeSet1, int index1, int treeSet2, int index2) {
+		return neededDistance(treeSet1, index1, treeSet2, index2) + 1;
+	}
+
+	/** @return distance between two trees, failing if one of them was released **/
+	protected int neededDistance(int treeSet1, int index1, int treeSet2, int index2) {
+		int d = distance(treeSet1, index1, treeSet2, index2);
+		if (d < 0) {
+			throw new IllegalStateException("Tree " + index1 + " of chain " + treeSet1 + " or tree " + index2 + " of chain " + treeSet2 
+					+ " was released, but is still needed");
+		}
+		return d;
+	}
+
+	/** @return distance between two trees, from the cache if possible, or -1 if one of the trees was released **/
+	int distance(int treeSet1, int index1, int treeSet2, int index2) {
 		if (treeSet1 == treeSet2 && index1 == index2) {
-			return 0+1; // +1 so that we can use 0 to detect whether the distance is in the cache
+			return 0;
 		}
-		float d = traceInfo.distances.getDistance(treeSet1, index1, treeSet2, index2);
-		if (d > 0) {
+		int d = distances.getDistance(treeSet1, index1, treeSet2, index2);
+		if (d >= 0) {
 			return d;
 		}
 		
-		TreeInterface tree1 = trees[treeSet1].get(index1);
-		TreeInterface tree2 = trees[treeSet2].get(index2);
-		RNNIMetric m = new RNNIMetric();
-		d = (float) m.distance(tree1, tree2) + 1; // +1 so that we can use 0 to detect whether the distance is in the cache
-		traceInfo.distances.setDistance(treeSet1, index1, treeSet2, index2, d);
+		CompactTree tree1 = traceInfo.getCompactTree(treeSet1, index1);
+		CompactTree tree2 = traceInfo.getCompactTree(treeSet2, index2);
+		if (tree1 == null || tree2 == null) {
+			return -1;
+		}
+		// only topologies that occur more than once are worth remembering distances for
+		boolean interned = tree1.topologyId >= 0 && tree2.topologyId >= 0;
+		boolean repeated = interned && (tree1.repeatedTopology || tree2.repeatedTopology);
+		d = repeated || (interned && tree1.topologyId == tree2.topologyId) ? 
+				distances.getTopologyDistance(tree1.topologyId, tree2.topologyId) : -1;
+		if (d < 0) {
+			d = (int) metric.distance(tree1, tree2);
+			if (repeated) {
+				distances.setTopologyDistance(tree1.topologyId, tree2.topologyId, d);
+			}
+		}
+		distances.setDistance(treeSet1, index1, treeSet2, index2, d);
 		
 		// System.err.print(treeSet1 + "x" + treeSet2 + "[" + index1 + "," + index2+"] ");
 		// System.out.print(".");
 		return d;
 	}
 
+	/** let the distance cache and the trees kept in memory follow the current delta **/
+	protected void deltaChanged() {
+		distances.setDelta(this, delta, cacheLimit + 2);
+		// trees off the grid are not used any more, while those on the grid can be, 
+		// as far back as the burn-in can move, which may be the start of the chain
+		traceInfo.retainTrees(this, 0, delta);
+		if (indices != null) {
+			// move reference trees of the pseudo ESS onto the grid, since trees off the grid are released
+			for (int i = 0; i < indices.length; i++) {
+				indices[i] = indices[i] - indices[i] % delta;
+			}
+		}
+	}
+
+	@Override
+	public Object getSharedState() {
+		// tree distance cache is shared with other tree criteria using the same distances
+		return distances;
+	}
+
 	@Override
 	public void setup(int nChains, TraceInfo traceInfo) {
 		this.traceInfo = traceInfo;
-		if (traceInfo.distances == null) {
-			traceInfo.distances = new DistanceMatrixCache(1024);
-		}
+		metric = metricInput.get().newMetric(sketchSizeInput.get());
+		distances = traceInfo.distanceCache(distanceKey(), cacheLimit + 2, cacheStorageInput.get());
+		deltaChanged();
 		this.trees = traceInfo.trees;
 		this.numChains = nChains;
 		if (nChains != 2) {
 			throw new IllegalArgumentException("Only 2 chains can be handled by " + this.getClass().getName() + ", not " + nChains);
 		}
+		initCacheWidth();
+		initPrepare();
+		initPrecompute();
+	}
+
+	@Override
+	public void storeState(DataOutputStream out) throws IOException {
+		out.writeInt(delta);
+		out.writeBoolean(indices != null);
+		if (indices != null) {
+			out.writeInt(indices.length);
+			for (int i : indices) {
+				out.writeInt(i);
+			}
+		}
+	}
+
+	@Override
+	public void restoreState(DataInputStream in) throws IOException {
+		delta = in.readInt();
+		deltaChanged();
+		indices = null;
+		if (in.readBoolean()) {
+			indices = new int[in.readInt()];
+			for (int i = 0; i < indices.length; i++) {
+				indices[i] = in.readInt();
+			}
+		}
+	}
+
+	/** choose the number of bytes per cached distance once, when the first tree, and so the number of taxa, is known.
+	 * Tree 0 is on every grid, so it is retained. **/
+	protected void initCacheWidth() {
+		traceInfo.addTreeListener((chainNr, index) -> {
+			if (index == 0) {
+				CompactTree tree = traceInfo.getCompactTree(chainNr, index);
+				if (tree != null) {
+					distances.setMaxDistance(metric.maxDistance(tree.getLeafCount()));
+				}
+			}
+		});
+	}
+
+	/** let the metric prepare every retained tree as it arrives, such as the clade hashes for RF distances,
+	 * so a check only compares trees **/
+	protected void initPrepare() {
+		traceInfo.addTreeListener((chainNr, index) -> {
+			CompactTree tree = traceInfo.getCompactTree(chainNr, index);
+			if (tree != null) {
+				metric.prepare(tree);
+			}
+		});
+	}
+
+	/** start calculating distances in the background if requested **/
+	protected void initPrecompute() {
+		int threads = precomputeThreadsInput.get();
+		if (threads < 0) {
+			throw new IllegalArgumentException("precomputeThreads should not be negative, not " + threads);
+		}
+		if (threads > 0) {
+			// criteria sharing the distance cache share the background threads
+			traceInfo.precompute(distanceKey(), this, threads);
+		}
+	}
+
+	@Override
+	public void close() {
+		traceInfo.stopPrecompute(distanceKey());
+	}
+
+	/** @return key of the distance cache, shared by criteria with the same metric and sketch size **/
+	protected String distanceKey() {
+		return metricInput.get().distanceKey(sketchSizeInput.get());
 	}
 
 
@@ -0,0 +1,23 @@
+package asm.inference;
+
+/**
+ * Distance between trees, used by tree based stopping criteria.
+ * Implementations are called from several threads at the same time.
+ */
+public interface TreeMetric {
+
+	/**
+	 * @param tree1 first tree
+	 * @param tree2 second tree, with the same taxa as tree1
+	 * @return distance between tree1 and tree2
+	 */
+	long distance(CompactTree tree1, CompactTree tree2);
+
+	/** @return upper bound on the distance between two trees with leafCount leaves **/
+	long maxDistance(int leafCount);
+
+	/** calculate what distance() needs of a single tree, called when the tree is logged,
+	 * so that checks only compare trees **/
+	default void prepare(CompactTree tree) {
+	}
+}
@@ -6,9 +6,15 @@ import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.core.Log;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 @Description("Gelman-Rubin like criterion for convergence based on trees alone")
 public class TreePSRF extends TreeESS implements MCMCConvergenceCriterion {
@@ -18,6 +24,7 @@ public class TreePSRF extends TreeESS implements MCMCConvergenceCriterion {
 			+ "otherwise only one psrfs and pseudo ESS is calculated, which takes less computation but can be less robust", true);
 	
 	public Input<Boolean> checkESSInput = new Input<>("checkESS", "whether to check Tree ESS exceeds the targetESS", false);
+	public Input<Integer> threadsInput = new Input<>("threads", "number of threads used to update PSRFs for the trees in the window (default 1)", 1);
 
 	//	TraceInfo traceInfo;
 //	List<Tree>[] trees;
@@ -29,6 +36,8 @@ public class TreePSRF extends TreeESS implements MCMCConvergenceCriterion {
 //	private int targetESS;
 	private double smoothing, upper, lower;
 	private boolean prev = false;
+	// end of the last check
+	private int lastEnd = -1;
 
 //	private int cacheLimit;
 	// delta = gap between sampled trees due to cache pruning
@@ -36,6 +45,8 @@ public class TreePSRF extends TreeESS implements MCMCConvergenceCriterion {
 //	private int N;
 	
 	private boolean twoSided, checkESS;
+	/** pool for calculating PSRFs concurrently, or null if only one thread is used **/
+	private ForkJoinPool pool;
 
 //	private DecimalFormat f = new DecimalFormat("#.###");
 //	private DecimalFormat f1 = new DecimalFormat("#.#");
@@ -90,6 +101,13 @@ public class TreePSRF extends TreeESS implements MCMCConvergenceCriterion {
 		upper = 1.0 + b;
 		lower = 1.0 - b;
 		
+		int threads = threadsInput.get();
+		if (threads <= 0) {
+			throw new IllegalArgumentException("threads should be positive, not " + threads);
+		}
+		if (threads > 1) {
+			pool = new ForkJoinPool(threads);
+		}
 	}
 
 	@Override
@@ -110,18 +128,21 @@ public class TreePSRF extends TreeESS implements MCMCConvergenceCriterion {
 //			for (List<Tree> t : trees) {
 //				end = Math.min(end, t.size());
 //			}
-			if (end % delta != 0) {
-				// only check when end is divisible by delta
+			// only check when end is divisible by delta -- checks can be batched, 
+			// so end can skip past a multiple of delta
+			end = end - end % delta;
+			if (end == lastEnd) {
 				return prev;
 			}
-			int start = (int)(end * (1.0-smoothing));
-			start = start - start % delta;
+			int start = windowStart(end);
 	
 			if (end/delta > cacheLimit) {
 				delta *= 2;
+				deltaChanged();
 				Log.warning("Delta=" + delta);	
 				return converged(burnin, end);
 			}
+			lastEnd = end;
 
 			// This following commented out code follows the original pseudo code
 			// However, only calculating psrf2mean if psrf1mean passes the test
@@ -138,25 +159,20 @@ public class TreePSRF extends TreeESS implements MCMCConvergenceCriterion {
 //			
 //			Log.info("psrf1mean = " + psrf1mean + " psrf2mean = " + psrf2mean);
 //			if (lower < psrf1mean && psrf1mean < upper && lower < psrf2mean && psrf2mean < upper) {
-			double [] psrf = new double[(end-start)/delta]; 
-			for (int x = start; x < end; x += delta) {
-				psrf[(x-start)/delta] = calcPSRF(0, 1, x, burnin, end);
-			}
+			double [] psrf = calcPSRFs(0, 1, start, burnin, end);
 			double psrf1mean = mean(psrf);
 			this.grValues[0] = psrf1mean; // Setting the value for logging
 			double psrf2mean = 0;
 			
-			Log.info.print("psrf1mean = " + traceInfo.f.format(psrf1mean) + " ");
+			CriterionOutput.info().print("psrf1mean = " + traceInfo.f.format(psrf1mean) + " ");
 			if (lower < psrf1mean && psrf1mean < upper) {
 				if (start0 < 0) {
 					start0 = start;
 				}
-				for (int x = start; x < end; x += delta) {
-					psrf[(x-start)/delta] = calcPSRF(1, 0, x, burnin, end);
-				}
+				psrf = calcPSRFs(1, 0, start, burnin, end);
 				psrf2mean = mean(psrf);
 				this.grValues[1] = psrf2mean; // Setting the value for logging
-				Log.info.print("psrf2mean = " + traceInfo.f.format(psrf2mean)+ " ");
+				CriterionOutput.info().print("psrf2mean = " + traceInfo.f.format(psrf2mean)+ " ");
 				
 				if (lower < psrf2mean && psrf2mean < upper) {
 					if (!checkESS) {
@@ -166,7 +182,7 @@ public class TreePSRF extends TreeESS implements MCMCConvergenceCriterion {
 	    			// (end-start)/delta - 1 trees (the tree to compare with is removed from the sequence), 
 	    			// so we need at least one more tree to make the pseudoESS >= targetESS
 	    			if ((end - start0) <= targetESS) {
-	    				Log.info.print("not enough samples ");
+	    				CriterionOutput.info().print("not enough samples ");
 	    				return false;
 	    			}
 	                int cutStart = start0; 
@@ -177,12 +193,12 @@ public class TreePSRF extends TreeESS implements MCMCConvergenceCriterion {
 	                	pseudoESS(1, cutStart, cutEnd) >= targetESS) {
 	                	return true;
 	                }
-	        		Log.info.print(start0 + " ");
+	        		CriterionOutput.info().print(start0 + " ");
 	                return false;
 				}
 			}
 			if (lower <= psrf1mean || psrf1mean >= upper || lower <= psrf2mean || psrf2mean >= upper) {
-				Log.info.print("reset start ");
+				CriterionOutput.info().print("reset start ");
 				start0 = -1;
 			}
 		} catch (Throwable e) {
@@ -192,7 +208,7 @@ public class TreePSRF extends TreeESS implements MCMCConvergenceCriterion {
 			start0 = -1;
 			return false;
 		}
-		Log.info.print(start0 + " ");
+		CriterionOutput.info().print(start0 + " ");
 		return false;
 	}
 
@@ -203,27 +219,26 @@ public class TreePSRF extends TreeESS implements MCMCConvergenceCriterion {
 //			for (List<Tree> t : trees) {
 //				end = Math.min(end, t.size());
 //			}
-			if (end % delta != 0) {
-				// only check when end us divisible by delta
+			// only check when end is divisible by delta
+			end = end - end % delta;
+			if (end == lastEnd) {
 				return prev;
 			}
-			int start = (int)(end * (1.0-smoothing));
-			start = start - start % delta;
+			int start = windowStart(end);
 			
 			if (end/delta > cacheLimit) {
 				delta *= 2;
+				deltaChanged();
 				Log.warning("Delta=" + delta);	
 				return converged(burnin, end);
 			}
+			lastEnd = end;
 
-			double [] psrf = new double[(end-start)/delta]; 
-			for (int x = start; x < end; x += delta) {
-				psrf[(x-start)/delta] = calcPSRF(side-0, 1-side, x, burnin, end);
-			}
+			double [] psrf = calcPSRFs(side-0, 1-side, start, burnin, end);
 			double psrf1mean = mean(psrf);
 			this.grValues[0] = psrf1mean; // Setting the value for logging
 			
-			Log.info("\npsrf1mean = " + psrf1mean);
+			CriterionOutput.info().println("\npsrf1mean = " + psrf1mean);
 			if (lower < psrf1mean && psrf1mean < upper) {
 				if (!checkESS) {
 					return true;
@@ -256,7 +271,7 @@ public class TreePSRF extends TreeESS implements MCMCConvergenceCriterion {
 			start0 = -1;
 			return false;
 		}
-		Log.info.print(start0 + " ");
+		CriterionOutput.info().print(start0 + " ");
 		return false;
 	}	
 
@@ -271,28 +286,135 @@ public class TreePSRF extends TreeESS implements MCMCConvergenceCriterion {
 	}
 	
 
-	private Double calcPSRF(int treeSet1, int treeSet2, int k, int [] burnin, int end) {
-		double varIn = 0;
-		int start = start(burnin[treeSet1]);
-		for (int i = start; i < end; i += delta) {
-			double d = distancePlusOne(treeSet1, k, treeSet1, i);
-			varIn += d * d;
-		}
-		double varBetween = 0;
-		start = start(burnin[treeSet2]);
-		for (int i = start; i < end; i += delta) {
-			double d = distancePlusOne(treeSet1, k, treeSet2, i);
-			varBetween += d * d;
+	/** calculate PSRFs for reference trees start, start+delta, ... up to end of treeSet1 **/
+	private double [] calcPSRFs(int treeSet1, int treeSet2, int start, int [] burnin, int end) throws InterruptedException, ExecutionException {
+		if (psrfSums[treeSet1] == null) {
+			psrfSums[treeSet1] = new PSRFSums(treeSet1, treeSet2);
 		}
-		double psrf;
-		if (varIn != 0) {
-			psrf = Math.sqrt(varBetween / varIn);
-		} else {
-			psrf = Math.sqrt(varBetween);
+		PSRFSums sums = psrfSums[treeSet1];
+		sums.update(start, burnin, end);
+		double [] psrf = new double[(end-start)/delta];
+		for (int x = start; x < end; x += delta) {
+			psrf[(x-start)/delta] = sums.psrf(x);
 		}
 		return psrf;
 	}
 
+	/** sums of squared distances for the PSRFs of one side, one for treeSet1 = 0 and one for treeSet1 = 1 **/
+	private PSRFSums [] psrfSums = new PSRFSums[2];
+
+	/**
+	 * Sums of squared distances from every reference tree in the window of treeSet1 to the trees
+	 * after burn-in of treeSet1 (varIn) and of treeSet2 (varBetween), kept up to date as trees are
+	 * added and burn-in moves, instead of being recalculated at every check. Only terms for trees
+	 * that entered or left a range since the last update are added or subtracted, and sums of new
+	 * reference trees are calculated in full. Sums are kept in longs, since distances are integers,
+	 * so they do not drift. Distances needed by both sides are calculated once and shared through
+	 * the distance cache.
+	 */
+	private class PSRFSums {
+		final int treeSet1, treeSet2;
+		// grid the sums are based on, -1 if nothing calculated yet
+		int delta = -1;
+		// reference trees refStart, refStart+delta, ... up to end have sums
+		int refStart, end;
+		// sums cover trees of treeSet1 and treeSet2 from targetStart[0] and targetStart[1] up to end
+		int [] targetStart = new int[2];
+		// sums for reference tree k at index k/delta
+		long [] varIn = new long[0], varBetween = new long[0];
+
+		PSRFSums(int treeSet1, int treeSet2) {
+			this.treeSet1 = treeSet1;
+			this.treeSet2 = treeSet2;
+		}
+
+		void update(int start, int [] burnin, int newEnd) throws InterruptedException, ExecutionException {
+			final int delta = TreePSRF.this.delta;
+			if (delta != this.delta || newEnd < end || start < refStart) {
+				// start from scratch
+				this.delta = delta;
+				refStart = start;
+				end = start;
+			}
+			refStart = Math.max(refStart, start);
+			if (varIn.length <= newEnd / delta) {
+				varIn = Arrays.copyOf(varIn, newEnd / delta + 1);
+				varBetween = Arrays.copyOf(varBetween, newEnd / delta + 1);
+			}
+			final int [] newTargetStart = {start(burnin[treeSet1]), start(burnin[treeSet2])};
+			final int oldEnd = end;
+			final int [] oldTargetStart = targetStart.clone();
+			final int firstNew = Math.max(oldEnd, refStart);
+
+			// existing reference trees: move target ranges; new reference trees: calculate sums in full
+			IntStream refs = IntStream.range(0, (newEnd - refStart + delta - 1) / delta).map(j -> refStart + j * delta);
+			if (pool == null) {
+				refs.forEach(k -> update(k, k < firstNew, oldTargetStart, oldEnd, newTargetStart, newEnd));
+			} else {
+				pool.submit(() -> refs.parallel()
+						.forEach(k -> update(k, k < firstNew, oldTargetStart, oldEnd, newTargetStart, newEnd))
+					).get();
+			}
+			targetStart = newTargetStart;
+			end = newEnd;
+		}
+
+		private void update(int k, boolean existing, int [] oldTargetStart, int oldEnd, int [] newTargetStart, int newEnd) {
+			int j = k / delta;
+			if (existing) {
+				varIn[j] += change(k, treeSet1, oldTargetStart[0], oldEnd, newTargetStart[0], newEnd);
+				varBetween[j] += change(k, treeSet2, oldTargetStart[1], oldEnd, newTargetStart[1], newEnd);
+			} else {
+				varIn[j] = sum(k, treeSet1, newTargetStart[0], newEnd);
+				varBetween[j] = sum(k, treeSet2, newTargetStart[1], newEnd);
+			}
+		}
+
+		/** @return change in sum for reference tree k when target range [oldFrom, oldTo) becomes [newFrom, newTo) **/
+		private long change(int k, int treeSet, int oldFrom, int oldTo, int newFrom, int newTo) {
+			if (newFrom >= oldTo || oldFrom >= oldTo) {
+				// ranges do not overlap
+				return sum(k, treeSet, newFrom, newTo) - sum(k, treeSet, oldFrom, oldTo);
+			}
+			long change = sum(k, treeSet, oldTo, newTo);
+			if (newFrom > oldFrom) {
+				change -= sum(k, treeSet, oldFrom, newFrom);
+			} else {
+				change += sum(k, treeSet, newFrom, oldFrom);
+			}
+			return change;
+		}
+
+		/** @return sum of squared distances+1 from reference tree k to trees from to to (exclusive) of treeSet **/
+		private long sum(int k, int treeSet, int from, int to) {
+			long sum = 0;
+			for (int i = from; i < to; i += delta) {
+				// integer distances, since a float is not exact above 2^24
+				long d = neededDistance(treeSet1, k, treeSet, i) + 1L;
+				sum += d * d;
+			}
+			return sum;
+		}
+
+		double psrf(int k) {
+			double varIn = this.varIn[k / delta];
+			double varBetween = this.varBetween[k / delta];
+			double psrf;
+			if (varIn != 0) {
+				psrf = Math.sqrt(varBetween / varIn);
+			} else {
+				psrf = Math.sqrt(varBetween);
+			}
+			return psrf;
+		}
+	}
+
+	@Override
+	protected int windowStart(int end) {
+		int start = (int)(end * (1.0-smoothing));
+		return start - start % delta;
+	}
+
 	private int start(int start) {
 		if (start % delta != 0) {
 			start = start + delta- start % delta;
@@ -303,9 +425,9 @@ public class TreePSRF extends TreeESS implements MCMCConvergenceCriterion {
 	@Override
 	public void setup(int nChains, TraceInfo traceInfo) {
 		this.traceInfo = traceInfo;
-		if (traceInfo.distances == null) {
-			traceInfo.distances = new DistanceMatrixCache(1024);
-		}
+		metric = metricInput.get().newMetric(sketchSizeInput.get());
+		distances = traceInfo.distanceCache(distanceKey(), cacheLimit + 2, cacheStorageInput.get());
+		deltaChanged();
 		this.trees = traceInfo.trees;
 		this.numChains = nChains;
 		if (nChains != 2) {
@@ -315,6 +437,29 @@ public class TreePSRF extends TreeESS implements MCMCConvergenceCriterion {
 		this.grValues = new double[nChains];
 		// setting it to -2.0 indicating it has not been calculated for later postprocessing
 		Arrays.fill(grValues, -2.0);
+		initCacheWidth();
+		initPrepare();
+		initPrecompute();
+	}
+
+	@Override
+	public void storeState(DataOutputStream out) throws IOException {
+		super.storeState(out);
+		out.writeInt(start0);
+	}
+
+	@Override
+	public void restoreState(DataInputStream in) throws IOException {
+		super.restoreState(in);
+		start0 = in.readInt();
+	}
+
+	@Override
+	public void close() {
+		super.close();
+		if (pool != null) {
+			pool.shutdown();
+		}
 	}
 
 	public Map getLog() {
@@ -3,6 +3,7 @@ package asm.tools;
 import asm.inference.AutoStopMCMC;
 import asm.inference.MCMCChain;
 import beast.base.core.Description;
+import beast.base.core.Log;
 import beast.base.inference.Logger;
 import beast.base.parser.XMLParser;
 import beast.base.parser.XMLParserException;
@@ -15,6 +16,11 @@ public class EmulatedAutoStopMCMC extends AutoStopMCMC {
 
 	@Override
 	protected void initChains() {
+		if (inProcess) {
+			// emulated chains copy log files, and do not hand over samples
+			Log.warning("inProcess is ignored by the emulator");
+			inProcess = false;
+		}
 		// the difference between the various chains is
 		// 1. it runs an MCMC, not an AutoStopMCMC
 		// 2. remove chains attribute
@@ -25,6 +31,10 @@ public class EmulatedAutoStopMCMC extends AutoStopMCMC {
 		sXML = sXML.replaceAll("targetESS=[^ /]*", "");
 		sXML = sXML.replaceAll("burnInStrat=[^ /]*", "");
 		sXML = sXML.replaceAll("burnInPercent=[^ /]*", "");
+		sXML = sXML.replaceAll("inProcess=[^ /]*", "");
+		sXML = sXML.replaceAll("pollInterval=[^ /]*", "");
+		sXML = sXML.replaceAll("checkLoad=[^ /]*", "");
+		sXML = sXML.replaceAll("checkThreads=[^ /]*", "");
 
 		String sMultiMCMC = this.getClass().getName();
 		while (sMultiMCMC.length() > 0) {
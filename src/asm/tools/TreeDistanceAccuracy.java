@@ -0,0 +1,157 @@
+package asm.tools;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import asm.inference.CompactTree;
+import asm.inference.DistanceMetric;
+import asm.inference.TraceInfo;
+import asm.inference.TreeMetric;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.Runnable;
+import beastfx.app.tools.Application;
+import beastfx.app.treeannotator.TreeAnnotator;
+import beastfx.app.treeannotator.TreeAnnotator.FastTreeSet;
+import beastfx.app.util.TreeFile;
+
+@Description("Measure how well an approximate tree distance matches an exact one on random pairs of trees from tree logs")
+public class TreeDistanceAccuracy extends Runnable {
+	final public Input<List<TreeFile>> treesInput = new Input<>("tree", "tree files to take pairs of trees from", new ArrayList<>());
+	final public Input<Integer> burnInPercentageInput = new Input<>("burnin", "percentage of trees to used as burn-in (and will be ignored)", 10);
+	final public Input<DistanceMetric> metricInput = new Input<>("metric", "approximate tree distance (default SketchRF)", DistanceMetric.SketchRF, DistanceMetric.values());
+	final public Input<DistanceMetric> exactInput = new Input<>("exact", "exact tree distance to compare with (default RF)", DistanceMetric.RF, DistanceMetric.values());
+	final public Input<Integer> sketchSizeInput = new Input<>("sketchSize", "number of clades per tree used by SketchRF (default 256)", 256);
+	final public Input<Integer> pairsInput = new Input<>("pairs", "number of random pairs of trees to compare (default 1000)", 1000);
+	final public Input<Long> seedInput = new Input<>("seed", "seed for selecting random pairs", 127L);
+
+	@Override
+	public void initAndValidate() {
+	}
+
+	@Override
+	public void run() throws Exception {
+		List<CompactTree> trees = new ArrayList<>();
+		for (int i = 0; i < treesInput.get().size(); i++) {
+			trees.addAll(getTrees(i));
+		}
+		if (trees.size() < 2) {
+			Log.warning("At least two trees after burn-in are required");
+			return;
+		}
+
+		int nPairs = pairsInput.get();
+		CompactTree [] tree1 = new CompactTree[nPairs];
+		CompactTree [] tree2 = new CompactTree[nPairs];
+		Random random = new Random(seedInput.get());
+		for (int k = 0; k < nPairs; k++) {
+			int i = random.nextInt(trees.size());
+			int j = random.nextInt(trees.size() - 1);
+			tree1[k] = trees.get(i);
+			tree2[k] = trees.get(j < i ? j : j + 1);
+		}
+
+		TreeMetric exact = exactInput.get().newMetric(sketchSizeInput.get());
+		TreeMetric approximate = metricInput.get().newMetric(sketchSizeInput.get());
+		// the first distance of every tree includes precalculating its clades, so time a second round
+		long [] d = distances(exact, tree1, tree2);
+		long start = System.nanoTime();
+		d = distances(exact, tree1, tree2);
+		double exactTime = (System.nanoTime() - start) / 1e3 / nPairs;
+		long [] a = distances(approximate, tree1, tree2);
+		start = System.nanoTime();
+		a = distances(approximate, tree1, tree2);
+		double approximateTime = (System.nanoTime() - start) / 1e3 / nPairs;
+
+		double sumExact = 0, sumApproximate = 0, sumAbsError = 0, sumSquaredError = 0, sumRelativeError = 0;
+		double sumExact2 = 0, sumApproximate2 = 0, sumProduct = 0;
+		long maxError = 0;
+		int nonZero = 0;
+		for (int k = 0; k < nPairs; k++) {
+			long error = a[k] - d[k];
+			sumExact += d[k];
+			sumApproximate += a[k];
+			sumAbsError += Math.abs(error);
+			sumSquaredError += (double) error * error;
+			maxError = Math.max(maxError, Math.abs(error));
+			if (d[k] > 0) {
+				sumRelativeError += Math.abs(error) / (double) d[k];
+				nonZero++;
+			}
+			sumExact2 += (double) d[k] * d[k];
+			sumApproximate2 += (double) a[k] * a[k];
+			sumProduct += (double) d[k] * a[k];
+		}
+		double covariance = sumProduct / nPairs - sumExact / nPairs * sumApproximate / nPairs;
+		double varExact = sumExact2 / nPairs - sumExact / nPairs * sumExact / nPairs;
+		double varApproximate = sumApproximate2 / nPairs - sumApproximate / nPairs * sumApproximate / nPairs;
+
+		Log.info(nPairs + " pairs from " + trees.size() + " trees with " + trees.get(0).getLeafCount() + " taxa");
+		Log.info("mean " + exactInput.get() + " distance:   " + TraceInfo.f.format(sumExact / nPairs));
+		Log.info("mean " + metricInput.get() + " distance:   " + TraceInfo.f.format(sumApproximate / nPairs));
+		Log.info("mean absolute error:  " + TraceInfo.f.format(sumAbsError / nPairs));
+		Log.info("root mean sq. error:  " + TraceInfo.f.format(Math.sqrt(sumSquaredError / nPairs)));
+		Log.info("max absolute error:   " + maxError);
+		Log.info("mean relative error:  " + (nonZero > 0 ? TraceInfo.f.format(sumRelativeError / nonZero) : "NA"));
+		Log.info("correlation:          " + TraceInfo.f.format(covariance / Math.sqrt(varExact * varApproximate)));
+		Log.info("time per pair (us):   " + TraceInfo.f.format(exactTime) + " (" + exactInput.get() + ") vs "
+				+ TraceInfo.f.format(approximateTime) + " (" + metricInput.get() + ")");
+	}
+
+	private long [] distances(TreeMetric metric, CompactTree [] tree1, CompactTree [] tree2) {
+		long [] d = new long[tree1.length];
+		for (int k = 0; k < d.length; k++) {
+			d[k] = metric.distance(tree1[k], tree2[k]);
+		}
+		return d;
+	}
+
+	private PrintStream nullstream = new PrintStream(new OutputStream() {
+		@Override
+		public void write(int b) throws IOException {
+		}
+	});
+
+	/** @return trees after burn-in from tree file i **/
+	private List<CompactTree> getTrees(int i) throws IOException {
+		PrintStream originalErr = System.err;
+		System.setErr(nullstream);
+		try {
+			String treeFile = treesInput.get().get(i).getPath();
+			FastTreeSet treeset = new TreeAnnotator().new FastTreeSet(treeFile, 0);
+			List<Tree> trees = new ArrayList<>();
+			while (treeset.hasNext()) {
+				trees.add(treeset.next());
+			}
+
+			List<CompactTree> compactTrees = new ArrayList<>();
+			String [] taxa = null;
+			for (int k = burnInPercentageInput.get() * trees.size() / 100; k < trees.size(); k++) {
+				Tree tree = trees.get(k);
+				String [] treeTaxa = new String[tree.getLeafNodeCount()];
+				for (int j = 0; j < treeTaxa.length; j++) {
+					treeTaxa[j] = tree.getNode(j).getID();
+				}
+				// share taxa among trees, as trees from a tree log do
+				if (!Arrays.equals(taxa, treeTaxa)) {
+					taxa = treeTaxa;
+				}
+				compactTrees.add(new CompactTree(tree, taxa));
+			}
+			return compactTrees;
+		} finally {
+			System.setErr(originalErr);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Application(new TreeDistanceAccuracy(), "Tree Distance Accuracy", args);
+	}
+}
@@ -0,0 +1,138 @@
+package test.asm.inference;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import asm.inference.DistanceMatrixCache;
+import asm.inference.DistanceStorage;
+
+/**
+ * Many threads read and fill the cache while the window advances, so slots get handed
+ * to later trees, delta doubles and the number of bytes per distance grows, which both
+ * replace the grid. Every distance read back must be the one that was stored.
+ */
+public class DistanceMatrixCacheTest {
+	final static int CAPACITY = 64;
+	final static int TREES = 6000;
+	final static int THREADS = 8;
+	// number of cache operations per tree added
+	final static int OPS_PER_TREE = 100;
+	final static long TIMEOUT = 120000;
+
+	@Test
+	public void testConcurrentHeap() throws InterruptedException {
+		stress(DistanceStorage.Heap);
+	}
+
+	@Test
+	public void testConcurrentDirect() throws InterruptedException {
+		stress(DistanceStorage.Direct);
+	}
+
+	@Test
+	public void testConcurrentMapped() throws InterruptedException {
+		stress(DistanceStorage.Mapped);
+	}
+
+	/** distance between two trees, the same for either order, needing 1, 2 and then 4 bytes as the chains proceed **/
+	static int distance(int treeSet1, int index1, int treeSet2, int index2) {
+		long key1 = ((long) treeSet1 << 32) | index1;
+		long key2 = ((long) treeSet2 << 32) | index2;
+		long h = mix(Math.min(key1, key2) * 31 + Math.max(key1, key2));
+		int last = Math.max(index1, index2);
+		int range = last < TREES / 3 ? 250 : last < 2 * TREES / 3 ? 60000 : 1 << 24;
+		return (int) ((h >>> 1) % range);
+	}
+
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	private volatile int end = 1;
+	private volatile int delta = 1;
+	private volatile boolean done;
+	private DistanceMatrixCache cache;
+
+	private void stress(DistanceStorage storage) throws InterruptedException {
+		cache = new DistanceMatrixCache(CAPACITY, storage);
+		AtomicReference<String> failure = new AtomicReference<>();
+		AtomicLong ops = new AtomicLong();
+		AtomicLong hits = new AtomicLong();
+		end = 1;
+		delta = 1;
+		done = false;
+
+		Thread [] workers = new Thread[THREADS];
+		for (int k = 0; k < THREADS; k++) {
+			Random random = new Random(k);
+			workers[k] = new Thread(() -> {
+				try {
+					while (!done && failure.get() == null) {
+						int e = end, d = delta;
+						// trees on the grid in the window of the last CAPACITY/2 grid points
+						int last = (e - 1) / d;
+						int first = Math.max(0, last - CAPACITY / 2 + 1);
+						int treeSet1 = random.nextInt(2), treeSet2 = random.nextInt(2);
+						int index1 = (first + random.nextInt(last - first + 1)) * d;
+						int index2 = (first + random.nextInt(last - first + 1)) * d;
+						int expected = distance(treeSet1, index1, treeSet2, index2);
+						int cached = cache.getDistance(treeSet1, index1, treeSet2, index2);
+						if (cached >= 0) {
+							hits.incrementAndGet();
+							if (cached != expected) {
+								failure.compareAndSet(null, "distance(" + treeSet1 + ":" + index1 + ", " + treeSet2 + ":" + index2
+										+ ") = " + cached + " but expected " + expected);
+							}
+						} else {
+							cache.setDistance(treeSet1, index1, treeSet2, index2, expected);
+						}
+						long n = ops.incrementAndGet();
+						if (n % OPS_PER_TREE == 0) {
+							addTree((int) (n / OPS_PER_TREE) + 1);
+						}
+					}
+				} catch (Throwable t) {
+					failure.compareAndSet(null, t.toString());
+				}
+			});
+			workers[k].start();
+		}
+
+		// one deadline for all workers, not TIMEOUT each
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		for (Thread worker : workers) {
+			worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+		}
+		done = true;
+		for (Thread worker : workers) {
+			assertTrue(!worker.isAlive(), "worker did not finish");
+		}
+		assertNull(failure.get());
+		assertTrue(hits.get() > 0, "no distances were found in the cache");
+	}
+
+	/** advance the window to tree e, which is called by the workers so no thread sits waiting for the others **/
+	private synchronized void addTree(int e) {
+		if (e <= end) {
+			return;
+		}
+		if (e > TREES) {
+			done = true;
+			return;
+		}
+		// the ring buffer wraps around once before delta doubles
+		if (e / delta >= 2 * CAPACITY) {
+			delta *= 2;
+			cache.setDelta(this, delta, CAPACITY);
+		}
+		end = e;
+	}
+}
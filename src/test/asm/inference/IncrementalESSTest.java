@@ -0,0 +1,154 @@
+package test.asm.inference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import asm.inference.IncrementalESS;
+import asm.inference.TraceColumn;
+
+/**
+ * The incremental ESS must match the ESS recalculated from scratch on the concatenated
+ * post-burn-in traces, however the window of each chain moved since the previous call.
+ */
+public class IncrementalESSTest {
+	final static int MAX_LAG = 200;
+	final static int CHAINS = 3;
+	final static int LENGTH = 3000;
+	final static double TOLERANCE = 1e-8;
+
+	private TraceColumn [] traces;
+	private IncrementalESS ess;
+
+	private void init(long seed) {
+		Random random = new Random(seed);
+		traces = new TraceColumn[CHAINS];
+		for (int i = 0; i < CHAINS; i++) {
+			// strongly auto correlated, with a different level per chain
+			traces[i] = new TraceColumn();
+			double x = i;
+			for (int t = 0; t < LENGTH; t++) {
+				x = 0.95 * x + random.nextGaussian() + 0.05 * i;
+				traces[i].add(x);
+			}
+		}
+		ess = new IncrementalESS(MAX_LAG);
+	}
+
+	@Test
+	public void testGrowingTrace() {
+		init(1);
+		for (int end = 1; end <= LENGTH; end += 7) {
+			int b = end / 10;
+			check(new int[]{b, b / 2, b + 1}, end);
+		}
+	}
+
+	@Test
+	public void testBurninForwardAndBackward() {
+		init(2);
+		int [] burnin = new int[CHAINS];
+		Random random = new Random(3);
+		for (int end = 500; end <= LENGTH; end += 10) {
+			for (int i = 0; i < CHAINS; i++) {
+				// small steps either way, so samples get subtracted as well as added back
+				burnin[i] = Math.max(0, Math.min(end - 1, burnin[i] + random.nextInt(41) - 15));
+			}
+			check(burnin, end);
+		}
+	}
+
+	@Test
+	public void testLargeJumps() {
+		init(4);
+		// jumps larger than the window force a recalculation from scratch
+		check(new int[]{0, 0, 0}, 400);
+		check(new int[]{300, 350, 390}, 400);
+		check(new int[]{0, 10, 20}, 400);
+		check(new int[]{1000, 1200, 1400}, 2000);
+		check(new int[]{100, 1500, 1999}, 2000);
+		check(new int[]{500, 500, 500}, LENGTH);
+	}
+
+	@Test
+	public void testChainBoundaries() {
+		init(5);
+		// windows shorter than the lags at which the auto correlation is cut off,
+		// including empty ones, so many products span two or more chains
+		for (int end = 20; end <= 400; end += 3) {
+			check(new int[]{end - 5, end, end - 17}, end);
+			check(new int[]{end - 1, end - 12, end}, end);
+		}
+	}
+
+	@Test
+	public void testManySmallForwardMoves() {
+		init(6);
+		// the window keeps its size while moving forward one sample at a time, so the number
+		// of subtracted samples soon exceeds the number after which sums are recalculated
+		int size = 50;
+		for (int end = size; end <= LENGTH; end++) {
+			int b = end - size;
+			check(new int[]{b, b, b}, end);
+		}
+	}
+
+	private void check(int [] burnin, int end) {
+		double expected = referenceESS(concatenate(burnin, end));
+		double actual = ess.calcESS(traces, burnin, end);
+		if (Double.isNaN(expected)) {
+			assertEquals(expected, actual, 0.0, "ESS at end=" + end);
+		} else {
+			assertEquals(expected, actual, TOLERANCE * Math.abs(expected), "ESS at end=" + end);
+		}
+	}
+
+	private double [] concatenate(int [] burnin, int end) {
+		int n = 0;
+		for (int i = 0; i < CHAINS; i++) {
+			n += end - Math.min(burnin[i], end);
+		}
+		double [] trace = new double[n];
+		int pos = 0;
+		for (int i = 0; i < CHAINS; i++) {
+			for (int t = Math.min(burnin[i], end); t < end; t++) {
+				trace[pos++] = traces[i].get(t);
+			}
+		}
+		return trace;
+	}
+
+	/** ESS as calculated in Tracer, directly from the auto covariance of the mean centred trace **/
+	static double referenceESS(double [] trace) {
+		int n = trace.length;
+		if (n == 0) {
+			return Double.NaN;
+		}
+		double mean = 0;
+		for (double x : trace) {
+			mean += x;
+		}
+		mean /= n;
+		int maxLag = Math.min(n, MAX_LAG);
+		double [] autoCorrelation = new double[maxLag];
+		double integral = 0;
+		for (int lag = 0; lag < maxLag; lag++) {
+			for (int t = 0; t < n - lag; t++) {
+				autoCorrelation[lag] += (trace[t] - mean) * (trace[t + lag] - mean);
+			}
+			autoCorrelation[lag] /= (n - lag);
+			if (lag == 0) {
+				integral = autoCorrelation[0];
+			} else if (lag % 2 == 0) {
+				if (autoCorrelation[lag - 1] + autoCorrelation[lag] > 0) {
+					integral += 2.0 * (autoCorrelation[lag - 1] + autoCorrelation[lag]);
+				} else {
+					break;
+				}
+			}
+		}
+		return n / (integral / autoCorrelation[0]);
+	}
+}
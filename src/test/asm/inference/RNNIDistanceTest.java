@@ -0,0 +1,226 @@
+package test.asm.inference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import asm.inference.CompactTree;
+import asm.inference.RNNIDistance;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+
+/**
+ * RNNI distances compared with distances found by breadth first search over
+ * all ranked trees reachable by RNNI moves, and with a few hand-checked cases.
+ *
+ * Ranked trees are given by their encoding: children of the internal node of rank r
+ * at 2*(r-1) and 2*(r-1)+1, leaves numbered 0,...,n-1 and internal nodes n+r-1.
+ */
+public class RNNIDistanceTest {
+	private final RNNIDistance rnni = new RNNIDistance();
+
+	@Test
+	public void testSmallCases() {
+		// ((A,B),C) and ((A,C),B) differ by one NNI move
+		assertDistance(1, 3, new int[]{0, 1, 3, 2}, new int[]{0, 2, 3, 1});
+		assertDistance(0, 3, new int[]{0, 1, 3, 2}, new int[]{1, 0, 2, 3});
+		// ((A,B),(C,D)) with the clades in either order differ by one rank swap
+		assertDistance(1, 4, new int[]{0, 1, 2, 3, 4, 5}, new int[]{2, 3, 0, 1, 4, 5});
+		// (((A,B),C),D) to (((C,D),B),A) needs (n-1)(n-2)/2 moves
+		assertDistance(3, 4, new int[]{0, 1, 4, 2, 5, 3}, new int[]{2, 3, 4, 1, 5, 0});
+	}
+
+	@Test
+	public void testAgainstBreadthFirstSearch() {
+		Random random = new Random(1);
+		int [] sources = {0, 0, 0, 20, 20, 8, 3, 1};
+		for (int n = 3; n < sources.length; n++) {
+			String [] taxa = taxa(n);
+			for (int s = 0; s < sources[n]; s++) {
+				int [] source = randomEncoding(n, random);
+				CompactTree tree1 = new CompactTree(tree(source, n), taxa);
+				Map<String, int []> encodings = new HashMap<>();
+				Map<String, Integer> distances = breadthFirstSearch(n, source, encodings);
+				for (String key : distances.keySet()) {
+					CompactTree tree2 = new CompactTree(tree(encodings.get(key), n), taxa);
+					int expected = distances.get(key);
+					assertEquals(expected, rnni.distance(tree1, tree2), "n=" + n + " " + Arrays.toString(source) + " to " + key);
+					assertEquals(expected, rnni.distance(tree2, tree1), "n=" + n + " " + key + " to " + Arrays.toString(source));
+					assertTrue(expected <= rnni.maxDistance(n), "distance above maximum");
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testDifferentLeafOrder() {
+		Random random = new Random(2);
+		int n = 6;
+		String [] taxa = taxa(n);
+		for (int s = 0; s < 50; s++) {
+			int [] encoding1 = randomEncoding(n, random);
+			int [] encoding2 = randomEncoding(n, random);
+			int expected = breadthFirstSearch(n, encoding1, new HashMap<>()).get(key(n, encoding2));
+
+			// the same second tree, with leaves numbered in a different order
+			int [] permutation = permutation(n, random);
+			String [] permutedTaxa = new String[n];
+			int [] inverse = new int[n];
+			for (int i = 0; i < n; i++) {
+				permutedTaxa[i] = taxa[permutation[i]];
+				inverse[permutation[i]] = i;
+			}
+			int [] permuted = encoding2.clone();
+			for (int i = 0; i < permuted.length; i++) {
+				if (permuted[i] < n) {
+					permuted[i] = inverse[permuted[i]];
+				}
+			}
+			CompactTree tree1 = new CompactTree(tree(encoding1, n), taxa);
+			CompactTree tree2 = new CompactTree(tree(permuted, n), permutedTaxa);
+			assertEquals(expected, rnni.distance(tree1, tree2), "permuted leaves");
+			assertEquals(expected, rnni.distance(tree2, tree1), "permuted leaves");
+		}
+	}
+
+	private void assertDistance(long expected, int n, int [] encoding1, int [] encoding2) {
+		String [] taxa = taxa(n);
+		CompactTree tree1 = new CompactTree(tree(encoding1, n), taxa);
+		CompactTree tree2 = new CompactTree(tree(encoding2, n), taxa);
+		assertEquals(expected, rnni.distance(tree1, tree2), Arrays.toString(encoding1) + " to " + Arrays.toString(encoding2));
+		assertEquals(expected, rnni.distance(tree2, tree1), Arrays.toString(encoding2) + " to " + Arrays.toString(encoding1));
+	}
+
+	/** @return distance to every ranked tree reachable from source, keyed on the clades ordered by rank **/
+	private static Map<String, Integer> breadthFirstSearch(int n, int [] source, Map<String, int []> encodings) {
+		Map<String, Integer> distances = new HashMap<>();
+		ArrayDeque<int []> queue = new ArrayDeque<>();
+		distances.put(key(n, source), 0);
+		encodings.put(key(n, source), source);
+		queue.add(source);
+		while (!queue.isEmpty()) {
+			int [] encoding = queue.poll();
+			int d = distances.get(key(n, encoding));
+			for (int [] neighbour : neighbours(n, encoding)) {
+				String key = key(n, neighbour);
+				if (!distances.containsKey(key)) {
+					distances.put(key, d + 1);
+					encodings.put(key, neighbour);
+					queue.add(neighbour);
+				}
+			}
+		}
+		return distances;
+	}
+
+	/** @return trees one RNNI move away: a rank swap if the nodes of rank r and r+1 are not
+	 * parent and child, otherwise the two NNI moves on the edge between them **/
+	private static List<int []> neighbours(int n, int [] encoding) {
+		List<int []> neighbours = new ArrayList<>();
+		for (int r = 1; r < n - 1; r++) {
+			int lower = n + r - 1, upper = n + r;
+			int l = 2 * (r - 1), u = 2 * r;
+			if (encoding[u] == lower || encoding[u + 1] == lower) {
+				int sibling = encoding[u] == lower ? encoding[u + 1] : encoding[u];
+				for (int k = 0; k < 2; k++) {
+					int [] e = encoding.clone();
+					int stay = encoding[l + k], move = encoding[l + 1 - k];
+					e[l] = stay;
+					e[l + 1] = sibling;
+					e[u] = lower;
+					e[u + 1] = move;
+					neighbours.add(e);
+				}
+			} else {
+				int [] e = encoding.clone();
+				for (int k = 0; k < 2; k++) {
+					int tmp = e[u + k];
+					e[u + k] = e[l + k];
+					e[l + k] = tmp;
+				}
+				for (int i = 2 * (r + 1); i < e.length; i++) {
+					if (e[i] == upper) {
+						e[i] = lower;
+					} else if (e[i] == lower) {
+						e[i] = upper;
+					}
+				}
+				neighbours.add(e);
+			}
+		}
+		return neighbours;
+	}
+
+	/** @return clades as leaf bitsets, ordered by rank, which identify a ranked tree **/
+	private static String key(int n, int [] encoding) {
+		long [] clades = new long[2 * n - 1];
+		for (int i = 0; i < n; i++) {
+			clades[i] = 1L << i;
+		}
+		for (int r = 1; r < n; r++) {
+			clades[n + r - 1] = clades[encoding[2 * (r - 1)]] | clades[encoding[2 * (r - 1) + 1]];
+		}
+		return Arrays.toString(Arrays.copyOfRange(clades, n, 2 * n - 1));
+	}
+
+	/** @return encoding of a random ranked tree, by joining random pairs of lineages **/
+	private static int [] randomEncoding(int n, Random random) {
+		List<Integer> lineages = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			lineages.add(i);
+		}
+		int [] encoding = new int[2 * (n - 1)];
+		for (int r = 1; r < n; r++) {
+			encoding[2 * (r - 1)] = lineages.remove(random.nextInt(lineages.size()));
+			encoding[2 * (r - 1) + 1] = lineages.remove(random.nextInt(lineages.size()));
+			lineages.add(n + r - 1);
+		}
+		return encoding;
+	}
+
+	/** @return tree with the internal node of rank r at height r, numbered as in the encoding **/
+	private static Tree tree(int [] encoding, int n) {
+		Node [] nodes = new Node[2 * n - 1];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = new Node(i < n ? "t" + i : null);
+			nodes[i].setNr(i);
+			nodes[i].setHeight(i < n ? 0 : i - n + 1);
+		}
+		for (int r = 1; r < n; r++) {
+			nodes[n + r - 1].addChild(nodes[encoding[2 * (r - 1)]]);
+			nodes[n + r - 1].addChild(nodes[encoding[2 * (r - 1) + 1]]);
+		}
+		return new Tree(nodes[2 * n - 2]);
+	}
+
+	private static String [] taxa(int n) {
+		String [] taxa = new String[n];
+		for (int i = 0; i < n; i++) {
+			taxa[i] = "t" + i;
+		}
+		return taxa;
+	}
+
+	private static int [] permutation(int n, Random random) {
+		int [] permutation = new int[n];
+		for (int i = 0; i < n; i++) {
+			permutation[i] = i;
+		}
+		for (int i = n - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int tmp = permutation[i];
+			permutation[i] = permutation[j];
+			permutation[j] = tmp;
+		}
+		return permutation;
+	}
+}
@@ -0,0 +1,210 @@
+package test.asm.inference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import asm.inference.ESSMethod;
+import asm.inference.SplitRHat;
+import asm.inference.TraceColumn;
+import asm.inference.TraceInfo;
+
+/**
+ * Bulk and tail R-hat and ESS of SplitRHat compared with a direct calculation from sorted ranks,
+ * while the window moves back and forth and after values outside the range of the bins force
+ * the bins to be rebuilt. Traces hold integers, and with 480 bins over 1.5 times a value range
+ * of 40 or 80 every integer has its own bin at the same spacing, so ranks in bins are exact.
+ */
+public class SplitRHatTest {
+	final static int CHAINS = 3;
+	final static int BINS = 480;
+	final static double TOLERANCE = 1e-9;
+
+	private TraceColumn [][] logs;
+	private SplitRHat rHat;
+
+	private void init() {
+		logs = new TraceColumn[CHAINS][2];
+		for (int i = 0; i < CHAINS; i++) {
+			logs[i][0] = new TraceColumn();
+			logs[i][1] = new TraceColumn();
+		}
+		TraceInfo traceInfo = new TraceInfo(CHAINS);
+		traceInfo.setLogs(logs);
+		traceInfo.setLabels(new String[]{"Sample", "x"});
+		rHat = new SplitRHat();
+		rHat.initByName("traces", "x", "bins", BINS, "targetESS", 1, "essMethod", ESSMethod.FFT);
+		rHat.setup(CHAINS, traceInfo);
+	}
+
+	/** add samples up to end: integers in [0,40] before sample 600 and in [0,80] from then on, with
+	 * chain 0 hitting both ends of the range every 20 samples so the range of every window is known **/
+	private void addSamples(int end, Random random) {
+		for (int t = logs[0][0].size(); t < end; t++) {
+			for (int i = 0; i < CHAINS; i++) {
+				// chains differ in location, so R-hat is well above 1 at first
+				int x = Math.min(40, random.nextInt(21) + random.nextInt(11) + 5 * i);
+				if (t >= 600 && random.nextBoolean()) {
+					x += 40;
+				}
+				if (i == 0 && t % 20 == 0) {
+					x = 0;
+				} else if (i == 0 && t % 20 == 10) {
+					x = t < 600 ? 40 : 80;
+				}
+				logs[i][0].add(t);
+				logs[i][1].add(x);
+			}
+		}
+	}
+
+	@Test
+	public void testMovingWindow() {
+		init();
+		Random random = new Random(1);
+		Random burnin = new Random(2);
+		for (int end = 60; end <= 580; end += 13) {
+			addSamples(end, random);
+			// burn-in moves forward most of the time, but backward now and then
+			int b = end / 4 + burnin.nextInt(end / 4);
+			check(new int[]{b, b - burnin.nextInt(10), b + burnin.nextInt(5)}, end);
+		}
+	}
+
+	@Test
+	public void testRebuild() {
+		init();
+		Random random = new Random(3);
+		for (int end = 100; end <= 1400; end += 37) {
+			addSamples(end, random);
+			// from sample 600 on, values outside the bins for [0,40] force a rebuild
+			int b = end / 3;
+			check(new int[]{b, b + 1, b + 2}, end);
+		}
+		// jump back to a window with values in [0,40] only, and forward again
+		int end = logs[0][0].size();
+		check(new int[]{0, 0, 0}, 500);
+		check(new int[]{700, 700, 700}, end);
+	}
+
+	private void check(int [] burnin, int end) {
+		rHat.converged(burnin, end);
+		Map<String, Double> log = rHat.getLog();
+
+		int start = 0;
+		for (int b : burnin) {
+			start = Math.max(start, Math.min(b, end));
+		}
+		start += (end - start) % 2;
+		int n = (end - start) / 2;
+		double [][] halves = new double[2 * CHAINS][n];
+		for (int i = 0; i < CHAINS; i++) {
+			for (int t = 0; t < n; t++) {
+				halves[2 * i][t] = logs[i][1].get(start + t);
+				halves[2 * i + 1][t] = logs[i][1].get(start + n + t);
+			}
+		}
+		double [][] bulk = rankNormalise(halves);
+
+		double [] pooled = pool(halves);
+		Arrays.sort(pooled);
+		double median = pooled[pooled.length / 2];
+		double [][] distances = new double[2 * CHAINS][n];
+		for (int j = 0; j < 2 * CHAINS; j++) {
+			for (int t = 0; t < n; t++) {
+				distances[j][t] = Math.abs(halves[j][t] - median);
+			}
+		}
+		double [][] tail = rankNormalise(distances);
+
+		String window = " for [" + start + "," + end + ")";
+		assertEquals(rHat(bulk), log.get("bulkRHat-x"), TOLERANCE, "bulk R-hat" + window);
+		assertEquals(rHat(tail), log.get("tailRHat-x"), TOLERANCE, "tail R-hat" + window);
+		double bulkESS = ESSMethod.FFT.newEstimator(0).calcESS(pool(bulk), 0, 2 * CHAINS * n);
+		double tailESS = ESSMethod.FFT.newEstimator(0).calcESS(pool(tail), 0, 2 * CHAINS * n);
+		assertEquals(bulkESS, log.get("bulkESS-x"), TOLERANCE * bulkESS, "bulk ESS" + window);
+		assertEquals(tailESS, log.get("tailESS-x"), TOLERANCE * tailESS, "tail ESS" + window);
+	}
+
+	/** @return half chains concatenated, in the order of the samples in the trace logs **/
+	private static double [] pool(double [][] halves) {
+		int n = halves[0].length;
+		double [] pooled = new double[halves.length * n];
+		for (int j = 0; j < halves.length; j++) {
+			System.arraycopy(halves[j], 0, pooled, j * n, n);
+		}
+		return pooled;
+	}
+
+	/** @return normal scores of the pooled ranks, with tied values getting their average rank **/
+	private static double [][] rankNormalise(double [][] values) {
+		double [] sorted = pool(values);
+		Arrays.sort(sorted);
+		double [][] z = new double[values.length][values[0].length];
+		for (int j = 0; j < values.length; j++) {
+			for (int t = 0; t < values[j].length; t++) {
+				int lower = 0, upper = 0;
+				for (double x : sorted) {
+					lower += x < values[j][t] ? 1 : 0;
+					upper += x <= values[j][t] ? 1 : 0;
+				}
+				double rank = lower + (upper - lower + 1) / 2.0;
+				// Blom's offset
+				z[j][t] = inverseNormal((rank - 0.375) / (sorted.length + 0.25));
+			}
+		}
+		return z;
+	}
+
+	/** @return potential scale reduction factor of the given (half) chains **/
+	private static double rHat(double [][] chains) {
+		int m = chains.length, n = chains[0].length;
+		double [] means = new double[m];
+		double grandMean = 0, within = 0;
+		for (int j = 0; j < m; j++) {
+			for (double x : chains[j]) {
+				means[j] += x / n;
+			}
+			double ss = 0;
+			for (double x : chains[j]) {
+				ss += (x - means[j]) * (x - means[j]);
+			}
+			within += ss / (n - 1) / m;
+			grandMean += means[j] / m;
+		}
+		double between = 0;
+		for (int j = 0; j < m; j++) {
+			between += (means[j] - grandMean) * (means[j] - grandMean) * n / (m - 1);
+		}
+		if (within == 0) {
+			return 1.0;
+		}
+		return Math.sqrt(((n - 1.0) / n * within + between / n) / within);
+	}
+
+	/** @return inverse of the standard normal CDF, using Acklam's rational approximation as SplitRHat does **/
+	private static double inverseNormal(double p) {
+		final double [] a = {-3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02,
+				1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00};
+		final double [] b = {-5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02,
+				6.680131188771972e+01, -1.328068155288572e+01};
+		final double [] c = {-7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00,
+				-2.549732539343734e+00, 4.374664141464968e+00, 2.938163982698783e+00};
+		final double [] d = {7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00,
+				3.754408661907416e+00};
+		if (p < 0.02425 || p > 1 - 0.02425) {
+			double q = Math.sqrt(-2 * Math.log(Math.min(p, 1 - p)));
+			double x = (((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5]) /
+					((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+			return p < 0.5 ? x : -x;
+		}
+		double q = p - 0.5;
+		double r = q * q;
+		return (((((a[0] * r + a[1]) * r + a[2]) * r + a[3]) * r + a[4]) * r + a[5]) * q /
+				(((((b[0] * r + b[1]) * r + b[2]) * r + b[3]) * r + b[4]) * r + 1);
+	}
+}